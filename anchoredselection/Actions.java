@@ -3,12 +3,22 @@ package anchoredselection;
 
 // {{{ Imports
 import org.gjt.sp.jedit.ActionSet;
-import org.gjt.sp.jedit.BeanShellAction;
 import org.gjt.sp.jedit.EditAction;
+import org.gjt.sp.jedit.EditPlugin;
+import org.gjt.sp.jedit.GUIUtilities;
 import org.gjt.sp.jedit.jEdit;
 import org.gjt.sp.jedit.Macros;
+import org.gjt.sp.jedit.MiscUtilities;
 import org.gjt.sp.jedit.View;
+import org.gjt.sp.jedit.browser.VFSBrowser;
+import org.gjt.sp.jedit.textarea.Selection;
 import org.gjt.sp.jedit.textarea.TextArea;
+import org.gjt.sp.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 // }}}
 
 public class Actions {
@@ -30,6 +40,13 @@ public class Actions {
         "copy", "copy-append",
         "copy-string-register", "copy-append-string-register"
     };
+    /** Built-in actions that consume the selection without ending anchored
+     *  selection mode explicitly. These will be wrapped with
+     *  {@link #updateSelectionAndInvoke} */
+    static final String[] selectionConsumerActionNames = new String[] {
+        "cut", "cut-append", "cut-string-register", "cut-append-string-register",
+        "delete", "backspace"
+    };
     /** Built-in select actions that end anchored selection mode (as it is
      *  unclear where the new anchor position would be). These will be wrapped
      *  with {@link #raiseAnchorAndInvoke} */
@@ -93,12 +110,205 @@ public class Actions {
             AnchoredSelectionPlugin.raiseAnchor(view);
         }
     }
+
+    /** Push the caret position onto the mark ring of the current buffer. */
+    public static void pushMark(View view) {
+        AnchoredSelectionPlugin.pushMark(view);
+    }
+
+    /** Move the caret to the most recent mark of the current buffer and
+     *  remove that mark from the ring. */
+    public static void popMark(View view) {
+        AnchoredSelectionPlugin.popMark(view);
+    }
+
+    /** Exchange caret and mark (in anchored selection mode the anchor). */
+    public static void exchangeMark(View view) {
+        AnchoredSelectionPlugin.exchangeMark(view);
+    }
+
+    /** Ask for a file and write the anchored selection (or the selection at
+     *  the caret) to it. Ends anchored selection mode like copy actions. */
+    public static void writeSelectionToFile(View view) {
+        writeSelection(view, false);
+    }
+
+    /** Like {@link #writeSelectionToFile} but append to the file. */
+    public static void appendSelectionToFile(View view) {
+        writeSelection(view, true);
+    }
+
+    /** Sort the lines of the anchored range (outside the EDT, the result
+     *  replaces the lines in one edit). */
+    public static void sortLines(View view) {
+        RangeOperations.start(view, RangeOperations.SORT_LINES);
+    }
+
+    /** Remove repeated lines of the anchored range (keep the first
+     *  occurrence, outside the EDT, the result replaces the lines in one
+     *  edit). */
+    public static void uniqueLines(View view) {
+        RangeOperations.start(view, RangeOperations.UNIQUE_LINES);
+    }
+
+    /** Ask for a regular expression and count its matches in the anchored
+     *  range. */
+    public static void countMatches(View view) {
+        String regex = GUIUtilities.input(view,
+                                    "anchoredselection.count-matches", null);
+        if(regex != null) {
+            countMatches(view, regex);
+        }
+    }
+
+    /** Count the matches of regex in the anchored range (outside the EDT). */
+    public static void countMatches(View view, String regex) {
+        Pattern pattern;
+        try {
+            pattern = Pattern.compile(regex, Pattern.MULTILINE);
+        } catch(PatternSyntaxException e) {
+            GUIUtilities.error(view, "anchoredselection.bulk-failed",
+                                new Object[] { e.getMessage() });
+            return;
+        }
+        RangeOperations.start(view, RangeOperations.countMatches(pattern));
+    }
+
+    /** Show the Adler-32 checksum of the anchored range in the buffer's
+     *  encoding (computed outside the EDT). */
+    public static void checksum(View view) {
+        RangeOperations.start(view, RangeOperations.CHECKSUM);
+    }
+
+    /**
+     *  Start a batch for a sequence of steps (e.g. in a macro): until the
+     *  matching {@link #endBatch} the selection is resized and the status bar
+     *  is updated only once. Batches may be nested. Macros are batched
+     *  automatically if the batch-macros option is set.
+     */
+    public static void beginBatch() {
+        AnchoredSelectionPlugin.beginBatch();
+    }
+
+    /** End a batch and apply the final selection and status bar state. */
+    public static void endBatch() {
+        AnchoredSelectionPlugin.endBatch();
+    }
+
+    /** Switch recording of metrics (counters and latencies of the plugin's
+     *  event handlers and action wrappers) on or off. */
+    public static void setMetricsEnabled(boolean enabled) {
+        Metrics.setEnabled(enabled);
+    }
+
+    /** @return a summary of the recorded metrics */
+    public static String getMetricsReport() {
+        return Metrics.getReport();
+    }
+
+    /** Reset all recorded metrics. */
+    public static void resetMetrics() {
+        Metrics.reset();
+    }
+
+    /** Switch recording of the trace of recent event handler, selection
+     *  resize and action wrapper calls on or off. */
+    public static void setTraceEnabled(boolean enabled) {
+        TraceRecorder.setEnabled(enabled);
+    }
+
+    /**
+     *  Write the recorded trace of the last seconds (option trace.seconds)
+     *  to a CSV file in the plugin home directory and show its path.
+     *  Entries that took longer than the option trace.stall-millis on the EDT
+     *  are flagged as stalls.
+     */
+    public static void dumpTrace(View view) {
+        File home = EditPlugin.getPluginHome(AnchoredSelectionPlugin.class);
+        if(home == null) {
+            GUIUtilities.error(view, "anchoredselection.trace-no-home", null);
+            return;
+        }
+        home.mkdirs();
+        File file = new File(home, "trace-" + System.currentTimeMillis()
+                                        + ".csv");
+        try {
+            int entries = TraceRecorder.dump(file,
+                jEdit.getIntegerProperty(AnchoredSelectionPlugin.OPTION_PREFIX
+                                            + "trace.seconds", 10),
+                jEdit.getIntegerProperty(AnchoredSelectionPlugin.OPTION_PREFIX
+                                            + "trace.stall-millis", 50));
+            GUIUtilities.message(view, "anchoredselection.trace-dumped",
+                    new Object[] { entries, file.getPath() });
+        } catch(IOException e) {
+            Log.log(Log.ERROR, Actions.class, e);
+            GUIUtilities.error(view, "anchoredselection.trace-failed",
+                    new Object[] { file.getPath(), e.getMessage() });
+        }
+    }
+    // }}}
+
+    // {{{ writeSelection
+
+    /**
+     *  Write the selection to a file chosen by the user.
+     *
+     *  The text is streamed by SelectionWriter, so even huge selections
+     *  (which copy actions would turn into a String) need no extra memory.
+     *  Only local files are supported.
+     */
+    private static void writeSelection(View view, boolean append) {
+        TextArea textArea = view.getTextArea();
+        if(!isAnchoredSelectionEnabled(view) && textArea.getSelectionAtOffset(
+                                    textArea.getCaretPosition()) == null) {
+            view.getToolkit().beep();
+            return;
+        }
+        String[] paths = GUIUtilities.showVFSFileDialog(view, null,
+                                            VFSBrowser.SAVE_DIALOG, false);
+        if(paths == null || paths.length == 0) {
+            return;
+        }
+        String path = paths[0];
+        if(MiscUtilities.isURL(path)) {
+            GUIUtilities.error(view, "anchoredselection.write-not-local",
+                                new Object[] { path });
+            return;
+        }
+        if(isAnchoredSelectionEnabled(view)) {
+            macroRecord(view, ACTION_METHOD_PREFIX +
+                                "setAnchoredSelectionEnabled(view, false);");
+            setAnchoredSelectionEnabled(view, false);
+        }
+        Selection selection = textArea.getSelectionAtOffset(
+                                                textArea.getCaretPosition());
+        if(selection == null) {
+            view.getToolkit().beep();
+            return;
+        }
+        view.showWaitCursor();
+        try {
+            long written = SelectionWriter.write(textArea.getBuffer(),
+                                        selection, new File(path), append);
+            view.getStatus().setMessageAndClear(jEdit.getProperty(
+                    "anchoredselection.write-done",
+                    new Object[] { written, path }));
+        } catch(IOException e) {
+            Log.log(Log.ERROR, Actions.class, e);
+            GUIUtilities.error(view, "anchoredselection.write-failed",
+                    new Object[] { path, e.getMessage() });
+        } finally {
+            view.hideWaitCursor();
+        }
+    }
     // }}}
 
     // {{{ action wrappers
 
     /** Wrapper for internal use that ends anchored selection mode before
-     *  invoking the built-in action. */
+     *  invoking the built-in action. (Ending anchored selection mode applies
+     *  any postponed selection resizing, so copy actions see the up-to-date
+     *  selection.) */
     public static void raiseAnchorAndInvoke(View view, String actionName) {
         if(isAnchoredSelectionEnabled(view)) {
             macroRecord(view, ACTION_METHOD_PREFIX +
@@ -108,20 +318,64 @@ public class Actions {
         invokeBuiltInAction(view, actionName);
     }
 
-    /** Wrapper for internal use that invokes the corresponding selecting
-     *  version of the built-in action if anchored selection mode is enabled. */
-    public static void invokeSelectVariant(View view, String actionName) {
+    /** Wrapper for internal use that brings the selection up to date (apply a
+     *  postponed resize or turn a virtual selection into a real one) before
+     *  invoking the built-in action. */
+    public static void updateSelectionAndInvoke(View view, String actionName) {
         if(isAnchoredSelectionEnabled(view)) {
-            actionName = "select-" + actionName;
-            // the action will fire two caret updates: first from caret move
-            // and then from selection resizing. We skip the first to avoid
-            // reseting the selection and losing the virtual width of a
-            // rectangular selection
-            AnchoredSelectionPlugin.skipCaretUpdate(view.getTextArea());
+            TextArea textArea = view.getTextArea();
+            AnchoredSelectionPlugin.flushPendingResize(textArea);
+            AnchoredSelectionPlugin.materializeSelection(textArea);
         }
         invokeBuiltInAction(view, actionName);
     }
 
+    /** Wrapper for internal use that invokes the corresponding selecting
+     *  version of the built-in action if anchored selection mode is enabled.
+     *  (Virtual selections have no real selection the plain action could
+     *  collapse, so the plain action is used for them.) */
+    public static void invokeSelectVariant(View view, String actionName) {
+        invokeSelectVariant(view, actionName, 1);
+    }
+
+    /**
+     *  Repeat count aware version of the above (used for repeat counts like
+     *  <code>C+ENTER 500 next-line</code>).
+     *
+     *  In anchored selection mode the caret is moved by the plain action
+     *  (without any selection) and the selection is resized once at the end.
+     *  Rectangular selections are resized on every step, as otherwise they
+     *  would lose their virtual width. Either way the macro recorder gets a
+     *  single (repeated) entry.
+     */
+    public static void invokeSelectVariant(View view, String actionName,
+                                            int repeatCount) {
+        TextArea textArea = view.getTextArea();
+        boolean selectVariant = isAnchoredSelectionEnabled(view)
+                            && !AnchoredSelectionPlugin.isVirtual(textArea);
+        EditAction action = builtinActionSet.getAction(
+                        selectVariant ? "select-" + actionName : actionName);
+        if(!action.noRecord()) {
+            macroRecord(view, repeatCount, action.getCode());
+        }
+        if(selectVariant && repeatCount > 1
+                && !textArea.isRectangularSelectionEnabled()) {
+            AnchoredSelectionPlugin.invokeBatched(view,
+                    builtinActionSet.getAction(actionName), repeatCount);
+            return;
+        }
+        for(int i = 0; i < repeatCount; i++) {
+            if(selectVariant) {
+                // the action will fire two caret updates: first from caret
+                // move and then from selection resizing. We skip the first to
+                // avoid reseting the selection and losing the virtual width
+                // of a rectangular selection
+                AnchoredSelectionPlugin.skipCaretUpdate(textArea);
+            }
+            action.invoke(view);
+        }
+    }
+
     /** Wrapper for internal use that works around the missing
      *  PropertiesChanging message by calling the handling method explicitly. */
     public static void invokeOptions(View view, String actionName) {
@@ -132,28 +386,104 @@ public class Actions {
 
     // {{{ wrapper installation / removal
 
+    /** The action wrappers above. Each one is invoked directly by a
+     *  {@link WrapperAction} so that no BeanShell code has to be evaluated
+     *  for every key stroke. */
+    private enum Wrapper {
+        RAISE_ANCHOR("raiseAnchorAndInvoke") {
+            void invoke(View view, String actionName) {
+                raiseAnchorAndInvoke(view, actionName);
+            }
+        },
+        UPDATE_SELECTION("updateSelectionAndInvoke") {
+            void invoke(View view, String actionName) {
+                updateSelectionAndInvoke(view, actionName);
+            }
+        },
+        SELECT_VARIANT("invokeSelectVariant") {
+            void invoke(View view, String actionName) {
+                invokeSelectVariant(view, actionName,
+                        view.getInputHandler().getRepeatCount());
+            }
+            boolean handlesRepeat() {
+                return true;
+            }
+        },
+        OPTIONS("invokeOptions") {
+            void invoke(View view, String actionName) {
+                invokeOptions(view, actionName);
+            }
+        };
+
+        /** name of the wrapper method (used for BeanShell code) */
+        final String method;
+
+        Wrapper(String method) {
+            this.method = method;
+        }
+
+        abstract void invoke(View view, String actionName);
+
+        /** @return whether the wrapper applies the input handler's repeat
+         *  count itself (instead of being invoked repeatedly) */
+        boolean handlesRepeat() {
+            return false;
+        }
+    }
+
+    /** Action that calls one of the above action wrappers. Macro recording is
+     *  done by the wrappers (see {@link #invokeBuiltInAction}). */
+    private static class WrapperAction extends EditAction {
+        private final Wrapper wrapper;
+        private final boolean noRepeat;
+        private final boolean noRememberLast;
+
+        WrapperAction(EditAction action, Wrapper wrapper) {
+            super(action.getName());
+            this.wrapper = wrapper;
+            this.noRepeat = action.noRepeat() || wrapper.handlesRepeat();
+            this.noRememberLast = action.noRememberLast();
+        }
+
+        public void invoke(View view) {
+            long start = Metrics.start();
+            wrapper.invoke(view, getName());
+            Metrics.recordAction(getName(), start);
+        }
+
+        public boolean noRepeat() {
+            return noRepeat;
+        }
+
+        public boolean noRecord() {
+            return true;
+        }
+
+        public boolean noRememberLast() {
+            return noRememberLast;
+        }
+
+        /** @return BeanShell code equivalent to this action */
+        public String getCode() {
+            return ACTION_METHOD_PREFIX + wrapper.method +
+                                    "(view, \"" + getName() + "\");";
+        }
+    }
+
     /** Create a new action that calls one the above action wrappers */
-    private static EditAction wrapAction(String actionName, String method) {
+    private static EditAction wrapAction(String actionName, Wrapper wrapper) {
         EditAction action = builtinActionSet.getAction(actionName);
         if(action == null) {
             return null;
         }
-        StringBuilder code = new StringBuilder(100);
-        code.append(ACTION_METHOD_PREFIX);
-        code.append(method);
-        code.append("(view, \"");
-        code.append(actionName);
-        code.append("\");");
-        return new BeanShellAction(actionName, code.toString(), null,
-                                    action.noRepeat(), true,
-                                    action.noRememberLast());
+        return new WrapperAction(action, wrapper);
     }
 
-    /** Create actions for the wrapper method and add them to the action set. */
-    private static void addWrappers(String[] actionNames, String wrapperName) {
+    /** Create actions for the wrapper and add them to the action set. */
+    private static void addWrappers(String[] actionNames, Wrapper wrapper) {
         EditAction action;
         for(String actionName: actionNames) {
-            action = wrapAction(actionName, wrapperName);
+            action = wrapAction(actionName, wrapper);
             if(action != null) {
                 overriddenBuiltInActionSet.addAction(action);
             }
@@ -167,11 +497,13 @@ public class Actions {
         }
         overriddenBuiltInActionSet = new ActionSet(
             builtinActionSet.getLabel() + " - anchored selection compatible");
-        addWrappers(selectActionNames, "raiseAnchorAndInvoke");
-        addWrappers(copyActionNames, "raiseAnchorAndInvoke");
-        addWrappers(caretMoveActionNames, "invokeSelectVariant");
-        addWrappers(optionActionNames, "invokeOptions");
+        addWrappers(selectActionNames, Wrapper.RAISE_ANCHOR);
+        addWrappers(copyActionNames, Wrapper.RAISE_ANCHOR);
+        addWrappers(selectionConsumerActionNames, Wrapper.UPDATE_SELECTION);
+        addWrappers(caretMoveActionNames, Wrapper.SELECT_VARIANT);
+        addWrappers(optionActionNames, Wrapper.OPTIONS);
         jEdit.addActionSet(overriddenBuiltInActionSet);
+        Metrics.count(Metrics.ACTION_SET_SWAP);
     }
 
     /** Uninstall action set with wrapped actions */
@@ -179,6 +511,7 @@ public class Actions {
         if(overriddenBuiltInActionSet != null) {
             jEdit.removeActionSet(overriddenBuiltInActionSet);
             overriddenBuiltInActionSet = null;
+            Metrics.count(Metrics.ACTION_SET_SWAP);
         }
     }
     // }}}
@@ -187,9 +520,20 @@ public class Actions {
 
     /** Record with current macro recorder (if one is active). */
     private static void macroRecord(View view, String cmd) {
+        macroRecord(view, 1, cmd);
+    }
+
+    /** Record repeated command with current macro recorder (if one is
+     *  active). */
+    private static void macroRecord(View view, int repeatCount, String cmd) {
         Macros.Recorder recorder = view.getMacroRecorder();
-        if(recorder != null) {
+        if(recorder == null) {
+            return;
+        }
+        if(repeatCount == 1) {
             recorder.record(cmd);
+        } else {
+            recorder.record(repeatCount, cmd);
         }
     }
 
@@ -6,6 +6,11 @@ import org.gjt.sp.jedit.buffer.JEditBuffer;
 import org.gjt.sp.jedit.textarea.TextArea;
 
 import javax.swing.text.Position;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
 // }}}
@@ -22,10 +27,54 @@ import java.util.WeakHashMap;
  *
  *  Anchors are stored as javax.swing.text.Position which are generated and
  *  updated (upon content changes) by TextArea.
+ *
+ *  Anchors are held in a TextAreaState per text area (which also holds other
+ *  per text area state) and in an index by buffer (then text area). The
+ *  latter allows the buffer related methods to touch only the anchors of that
+ *  buffer.
+ *
+ *  Concurrency: all methods must be called on the EDT except for
+ *  findRemoved, which may be called from any thread (buffer listeners may
+ *  fire on I/O or worker threads). It reads an immutable snapshot of the
+ *  anchors of a buffer which is replaced whenever they change. The caller
+ *  hands the result over to the EDT (see remove(JEditBuffer, Collection)),
+ *  so the EDT never waits for another thread.
+ *
+ *  During a compound edit the anchors of a buffer can be checked in bulk
+ *  (see startBulk): each anchor gets a TextAreaState.Guard and the guards
+ *  are checked once when the edit is complete instead of checking every
+ *  removal.
  */
 class AnchorMap {
-    private Map<TextArea, Map<JEditBuffer, Position>> bufferMaps =
-            new WeakHashMap<TextArea, Map<JEditBuffer, Position>>();
+    private Map<TextArea, TextAreaState> states =
+            new WeakHashMap<TextArea, TextAreaState>();
+    private Map<JEditBuffer, Map<TextArea, Position>> textAreaMaps =
+            new WeakHashMap<JEditBuffer, Map<TextArea, Position>>();
+    /* anchors by buffer for findRemoved and the quick check in remove
+     * (arrays are never modified) */
+    private Map<JEditBuffer, Position[]> snapshots = Collections.synchronizedMap(
+            new WeakHashMap<JEditBuffer, Position[]>());
+    /* guards of the anchors of buffers in a compound edit (EDT only) */
+    private Map<JEditBuffer, List<TextAreaState.Guard>> bulkGuards =
+            new WeakHashMap<JEditBuffer, List<TextAreaState.Guard>>();
+
+    // {{{ state methods
+
+    /** @return state of textArea or null if there is none yet */
+    TextAreaState getState(TextArea textArea) {
+        return states.get(textArea);
+    }
+
+    /** @return state of textArea (create it if necessary) */
+    TextAreaState getOrCreateState(TextArea textArea) {
+        TextAreaState state = states.get(textArea);
+        if(state == null) {
+            state = new TextAreaState();
+            states.put(textArea, state);
+        }
+        return state;
+    }
+    // }}}
 
     // {{{ set methods
 
@@ -37,28 +86,52 @@ class AnchorMap {
 
     /** Set anchor of the current buffer of textArea. */
     void set(TextArea textArea, int anchorOffset) {
-        Map<JEditBuffer, Position> anchorMap = bufferMaps.get(textArea);
-        if(anchorMap == null) {
-            anchorMap = new WeakHashMap<JEditBuffer, Position>();
-            bufferMaps.put(textArea, anchorMap);
-        }
+        set(textArea, anchorOffset, false, false);
+    }
+
+    /** Set anchor of the current buffer of textArea, whether the selection
+     *  is only painted (see VirtualSelectionPainter) and whether the anchor
+     *  is validated lazily (see TextAreaState.Guard). */
+    void set(TextArea textArea, int anchorOffset, boolean virtual,
+                boolean guarded) {
+        TextAreaState state = getOrCreateState(textArea);
         JEditBuffer buffer = textArea.getBuffer();
-        anchorMap.put(buffer, buffer.createPosition(anchorOffset));
+        Map<TextArea, Position> bufferAnchors = textAreaMaps.get(buffer);
+        if(bufferAnchors == null) {
+            bufferAnchors = new WeakHashMap<TextArea, Position>();
+            textAreaMaps.put(buffer, bufferAnchors);
+        }
+        Position anchor = buffer.createPosition(anchorOffset);
+        state.setAnchor(buffer, anchor, virtual, guarded);
+        bufferAnchors.put(textArea, anchor);
+        updateSnapshot(buffer, bufferAnchors);
+        List<TextAreaState.Guard> guards = bulkGuards.get(buffer);
+        if(guards != null) {
+            guards.add(new TextAreaState.Guard(buffer, anchor));
+        }
     }
     // }}}
 
     // {{{ get method
 
-    /** @return anchor position of the current buffer of textArea */
-    Integer get(TextArea textArea) {
-        Map<JEditBuffer, Position> anchorMap = bufferMaps.get(textArea);
-        if(anchorMap != null) {
-            Position anchor = anchorMap.get(textArea.getBuffer());
-            if(anchor != null) {
-                return anchor.getOffset();
-            }
+    /** @return anchor position of the current buffer of textArea or
+     *  TextAreaState.NO_ANCHOR */
+    int get(TextArea textArea) {
+        TextAreaState state = states.get(textArea);
+        if(state == null) {
+            return TextAreaState.NO_ANCHOR;
         }
-        return null;
+        return state.getAnchorOffset(textArea.getBuffer());
+    }
+
+    /** @return anchor position of buffer in any text area or
+     *  TextAreaState.NO_ANCHOR */
+    int get(JEditBuffer buffer) {
+        Map<TextArea, Position> bufferAnchors = textAreaMaps.get(buffer);
+        if(bufferAnchors == null || bufferAnchors.isEmpty()) {
+            return TextAreaState.NO_ANCHOR;
+        }
+        return bufferAnchors.values().iterator().next().getOffset();
     }
     // }}}
 
@@ -66,24 +139,202 @@ class AnchorMap {
 
     /** Delete anchor position of the current buffer of textArea, */
     void remove(TextArea textArea) {
-        Map<JEditBuffer, Position> anchorMap = bufferMaps.get(textArea);
-        if(anchorMap != null) {
-            anchorMap.remove(textArea.getBuffer());
+        JEditBuffer buffer = textArea.getBuffer();
+        TextAreaState state = states.get(textArea);
+        if(state != null) {
+            state.removeAnchor(buffer);
+        }
+        Map<TextArea, Position> bufferAnchors = textAreaMaps.get(buffer);
+        if(bufferAnchors != null) {
+            bufferAnchors.remove(textArea);
+            if(bufferAnchors.isEmpty()) {
+                textAreaMaps.remove(buffer);
+                bulkGuards.remove(buffer);
+            }
+            updateSnapshot(buffer, bufferAnchors);
         }
     }
 
     /** Delete the anchor positions of buffer in all text areas if they are
-     *  within the given range. */
-    void remove(JEditBuffer buffer, int offset, int length) {
-        for(Map<JEditBuffer, Position> anchorMap: bufferMaps.values()) {
-            if(!anchorMap.containsKey(buffer)) {
+     *  within the given range. If none is (the usual case) only the snapshot
+     *  is checked, without allocation.
+     *  @return the text areas whose anchor has been deleted */
+    List<TextArea> remove(JEditBuffer buffer, int offset, int length) {
+        if(!isAnyWithin(snapshots.get(buffer), offset, length)) {
+            return Collections.emptyList();
+        }
+        Map<TextArea, Position> bufferAnchors = textAreaMaps.get(buffer);
+        if(bufferAnchors == null) {
+            return Collections.emptyList();
+        }
+        List<TextArea> removed = null;
+        Iterator<Map.Entry<TextArea, Position>> entries =
+                bufferAnchors.entrySet().iterator();
+        while(entries.hasNext()) {
+            Map.Entry<TextArea, Position> entry = entries.next();
+            int anchor = entry.getValue().getOffset();
+            if(offset <= anchor && offset + length >= anchor) {
+                entries.remove();
+                TextArea textArea = entry.getKey();
+                TextAreaState state = states.get(textArea);
+                if(state != null) {
+                    state.removeAnchor(buffer);
+                }
+                if(removed == null) {
+                    removed = new ArrayList<TextArea>();
+                }
+                removed.add(textArea);
+            }
+        }
+        if(bufferAnchors.isEmpty()) {
+            textAreaMaps.remove(buffer);
+            bulkGuards.remove(buffer);
+        }
+        if(removed == null) {
+            return Collections.emptyList();
+        }
+        updateSnapshot(buffer, bufferAnchors);
+        return removed;
+    }
+
+    /** Delete the given anchor positions of buffer (found by findRemoved).
+     *  Anchors that have been replaced in the meantime are kept.
+     *  @return the text areas whose anchor has been deleted */
+    List<TextArea> remove(JEditBuffer buffer, Collection<Position> anchors) {
+        Map<TextArea, Position> bufferAnchors = textAreaMaps.get(buffer);
+        if(bufferAnchors == null) {
+            return Collections.emptyList();
+        }
+        List<TextArea> removed = new ArrayList<TextArea>();
+        Iterator<Map.Entry<TextArea, Position>> entries =
+                bufferAnchors.entrySet().iterator();
+        while(entries.hasNext()) {
+            Map.Entry<TextArea, Position> entry = entries.next();
+            if(!containsIdentical(anchors, entry.getValue())) {
                 continue;
             }
-            int anchor = anchorMap.get(buffer).getOffset();
+            entries.remove();
+            TextArea textArea = entry.getKey();
+            TextAreaState state = states.get(textArea);
+            if(state != null) {
+                state.removeAnchor(buffer);
+            }
+            removed.add(textArea);
+        }
+        if(bufferAnchors.isEmpty()) {
+            textAreaMaps.remove(buffer);
+            bulkGuards.remove(buffer);
+        }
+        updateSnapshot(buffer, bufferAnchors);
+        return removed;
+    }
+
+    /** Drop the cached selections of buffer in all text areas. */
+    void removeCachedSelections(JEditBuffer buffer) {
+        for(TextAreaState state: states.values()) {
+            state.takeCachedSelection(buffer);
+        }
+    }
+    // }}}
+
+    // {{{ bulk methods
+
+    /** Guard all anchors of buffer, so that removals no longer need to be
+     *  checked until endBulk is called. Anchors set in the meantime are
+     *  guarded as well. Bulk mode ends early if the buffer has no anchor
+     *  left (its listener is removed then). */
+    void startBulk(JEditBuffer buffer) {
+        List<TextAreaState.Guard> guards =
+                                    new ArrayList<TextAreaState.Guard>();
+        Position[] anchors = snapshots.get(buffer);
+        if(anchors != null) {
+            for(Position anchor: anchors) {
+                guards.add(new TextAreaState.Guard(buffer, anchor));
+            }
+        }
+        bulkGuards.put(buffer, guards);
+    }
+
+    /** @return whether the anchors of buffer are guarded by startBulk */
+    boolean isBulk(JEditBuffer buffer) {
+        return bulkGuards.containsKey(buffer);
+    }
+
+    /** Delete the anchor positions of buffer whose guard reports that the
+     *  anchored text has been removed since startBulk.
+     *  @return the text areas whose anchor has been deleted */
+    List<TextArea> endBulk(JEditBuffer buffer) {
+        List<TextAreaState.Guard> guards = bulkGuards.remove(buffer);
+        if(guards == null) {
+            return Collections.emptyList();
+        }
+        List<Position> collapsed = new ArrayList<Position>();
+        for(TextAreaState.Guard guard: guards) {
+            if(guard.isCollapsed()) {
+                collapsed.add(guard.getAnchor());
+            }
+        }
+        if(collapsed.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return remove(buffer, collapsed);
+    }
+    // }}}
+
+    // {{{ findRemoved method (thread safe)
+
+    /** @return anchor positions of buffer (in any text area) that are within
+     *  the given range. May be called from any thread. */
+    List<Position> findRemoved(JEditBuffer buffer, int offset, int length) {
+        Position[] anchors = snapshots.get(buffer);
+        if(!isAnyWithin(anchors, offset, length)) {
+            return Collections.emptyList();
+        }
+        List<Position> removed = new ArrayList<Position>();
+        for(Position position: anchors) {
+            int anchor = position.getOffset();
             if(offset <= anchor && offset + length >= anchor) {
-                anchorMap.remove(buffer);
+                removed.add(position);
             }
         }
+        return removed;
+    }
+
+    /** Replace the snapshot of the anchors of buffer. */
+    private void updateSnapshot(JEditBuffer buffer,
+                                Map<TextArea, Position> bufferAnchors) {
+        if(bufferAnchors.isEmpty()) {
+            snapshots.remove(buffer);
+        } else {
+            snapshots.put(buffer, bufferAnchors.values().toArray(
+                                    new Position[bufferAnchors.size()]));
+        }
+    }
+
+    /** @return whether any of anchors (may be null) is within the given
+     *  range */
+    private static boolean isAnyWithin(Position[] anchors, int offset,
+                                        int length) {
+        if(anchors == null) {
+            return false;
+        }
+        for(Position position: anchors) {
+            int anchor = position.getOffset();
+            if(offset <= anchor && offset + length >= anchor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsIdentical(Collection<Position> anchors,
+                                            Position anchor) {
+        for(Position position: anchors) {
+            if(position == anchor) {
+                return true;
+            }
+        }
+        return false;
     }
     // }}}
 
@@ -92,19 +343,15 @@ class AnchorMap {
     /** @return whether the map contains an anchor position for the current
      *  buffer of textArea. */
     boolean contains(TextArea textArea) {
-        return bufferMaps.containsKey(textArea) &&
-                bufferMaps.get(textArea).containsKey(textArea.getBuffer());
+        TextAreaState state = states.get(textArea);
+        return state != null && state.hasAnchor(textArea.getBuffer());
     }
 
     /** @return whether the map contains an anchor position for buffer in any
      *  textArea. */
     boolean contains(JEditBuffer buffer) {
-        for(Map<JEditBuffer, Position> anchorMap: bufferMaps.values()) {
-            if(anchorMap.containsKey(buffer)) {
-                return true;
-            }
-        }
-        return false;
+        Map<TextArea, Position> bufferAnchors = textAreaMaps.get(buffer);
+        return bufferAnchors != null && !bufferAnchors.isEmpty();
     }
     // }}}
 }
@@ -0,0 +1,313 @@
+// :indentSize=4:tabSize=4:noTabs=true:folding=explicit:
+package anchoredselection;
+
+// {{{ Imports
+import org.gjt.sp.jedit.EditPlugin;
+import org.gjt.sp.jedit.buffer.JEditBuffer;
+import org.gjt.sp.util.Log;
+
+import javax.swing.text.Segment;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+// }}}
+
+/**
+ *  Anchors of closed buffers, kept in an append-only index file in the
+ *  plugin home (see the persist-anchors option).
+ *
+ *  Each record holds the buffer path, a fingerprint and the anchor offset
+ *  (or NO_ANCHOR if the anchor has been removed); later records replace
+ *  earlier ones. The fingerprint is the buffer length and a checksum of the
+ *  text around the anchor, so checking whether a reopened buffer still fits
+ *  the anchor only reads that text, not the whole buffer.
+ *
+ *  The index is read on first use. Records are written in batches by a
+ *  background thread, which also rewrites the file without superseded
+ *  records once they dominate. All other methods are called on the EDT.
+ */
+class AnchorStore {
+    private static final int MAGIC = 0x41534931; // "ASI1"
+    private static final String FILE_NAME = "anchors.idx";
+    /* chars before and after the anchor covered by the fingerprint */
+    private static final int WINDOW = 512;
+
+    // {{{ data structures
+    /* latest record by path (null until loaded) */
+    private static Map<String, Record> index;
+    /* number of records in the file */
+    private static int recordCount = 0;
+    /* records waiting to be written (guarded by itself) */
+    private static final List<Record> pending = new ArrayList<Record>();
+    private static ExecutorService writer;
+    // }}}
+
+    // {{{ Record class
+    private static class Record {
+        final String path;
+        final int length;
+        final int checksum;
+        final int anchor;
+
+        Record(String path, int length, int checksum, int anchor) {
+            this.path = path;
+            this.length = length;
+            this.checksum = checksum;
+            this.anchor = anchor;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(path);
+            out.writeInt(length);
+            out.writeInt(checksum);
+            out.writeInt(anchor);
+        }
+
+        static Record read(DataInputStream in) throws IOException {
+            return new Record(in.readUTF(), in.readInt(), in.readInt(),
+                                in.readInt());
+        }
+    }
+    // }}}
+
+    // {{{ interface
+
+    /** @return stored anchor of the buffer at path if the buffer still fits
+     *  its fingerprint, else TextAreaState.NO_ANCHOR */
+    static int lookup(String path, JEditBuffer buffer) {
+        Record record = getIndex().get(path);
+        if(record == null || record.anchor == TextAreaState.NO_ANCHOR
+                || record.length != buffer.getLength()
+                || record.checksum != checksum(buffer, record.anchor)) {
+            return TextAreaState.NO_ANCHOR;
+        }
+        return record.anchor;
+    }
+
+    /** Remember anchor (or NO_ANCHOR to forget it) of the buffer at path. */
+    static void store(String path, JEditBuffer buffer, int anchor) {
+        Map<String, Record> index = getIndex();
+        Record old = index.get(path);
+        if(anchor == TextAreaState.NO_ANCHOR) {
+            if(old == null || old.anchor == TextAreaState.NO_ANCHOR) {
+                return;
+            }
+            append(new Record(path, 0, 0, TextAreaState.NO_ANCHOR));
+            return;
+        }
+        Record record = new Record(path, buffer.getLength(),
+                                    checksum(buffer, anchor), anchor);
+        if(old != null && old.anchor == anchor && old.length == record.length
+                && old.checksum == record.checksum) {
+            return;
+        }
+        append(record);
+    }
+
+    /** Write pending records and stop the writer (waits a few seconds at
+     *  most). */
+    static void shutdown() {
+        ExecutorService stopping;
+        synchronized(pending) {
+            stopping = writer;
+            writer = null;
+        }
+        if(stopping == null) {
+            return;
+        }
+        stopping.shutdown();
+        try {
+            stopping.awaitTermination(5, TimeUnit.SECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    // }}}
+
+    // {{{ index file
+
+    private static File getFile() {
+        File home = EditPlugin.getPluginHome(AnchoredSelectionPlugin.class);
+        return home == null ? null : new File(home, FILE_NAME);
+    }
+
+    /** Read the index file (once). */
+    private static Map<String, Record> getIndex() {
+        if(index != null) {
+            return index;
+        }
+        index = new HashMap<String, Record>();
+        File file = getFile();
+        if(file == null || !file.isFile()) {
+            return index;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                                                new FileInputStream(file)));
+            try {
+                if(in.readInt() != MAGIC) {
+                    Log.log(Log.WARNING, AnchorStore.class,
+                            "Ignoring unknown anchor index " + file);
+                    return index;
+                }
+                while(true) {
+                    Record record = Record.read(in);
+                    index.put(record.path, record);
+                    recordCount++;
+                }
+            } catch(EOFException e) {
+                // end of the index (a truncated last record is dropped)
+            } finally {
+                in.close();
+            }
+        } catch(IOException e) {
+            Log.log(Log.ERROR, AnchorStore.class, e);
+        }
+        return index;
+    }
+
+    /* Update the index and queue the record for the writer. */
+    private static void append(Record record) {
+        if(record.anchor == TextAreaState.NO_ANCHOR) {
+            index.remove(record.path);
+        } else {
+            index.put(record.path, record);
+        }
+        recordCount++;
+        boolean compact = recordCount > 2 * index.size() + 256;
+        final List<Record> snapshot = compact
+                            ? new ArrayList<Record>(index.values()) : null;
+        if(compact) {
+            recordCount = index.size();
+        }
+        synchronized(pending) {
+            if(compact) {
+                pending.clear();
+            } else {
+                pending.add(record);
+            }
+            if(writer == null) {
+                writer = Executors.newSingleThreadExecutor(
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable,
+                                                "AnchoredSelection anchors");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            }
+            if(compact) {
+                writer.execute(new Runnable() {
+                    public void run() {
+                        rewrite(snapshot);
+                    }
+                });
+            } else if(pending.size() == 1) {
+                // the first pending record schedules the write of all
+                writer.execute(new Runnable() {
+                    public void run() {
+                        flush();
+                    }
+                });
+            }
+        }
+    }
+
+    /* Append all pending records (on the writer thread). */
+    private static void flush() {
+        List<Record> records;
+        synchronized(pending) {
+            records = new ArrayList<Record>(pending);
+            pending.clear();
+        }
+        File file = getFile();
+        if(records.isEmpty() || file == null) {
+            return;
+        }
+        try {
+            file.getParentFile().mkdirs();
+            boolean exists = file.isFile() && file.length() > 0;
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file, true)));
+            try {
+                if(!exists) {
+                    out.writeInt(MAGIC);
+                }
+                for(Record record: records) {
+                    record.write(out);
+                }
+            } finally {
+                out.close();
+            }
+        } catch(IOException e) {
+            Log.log(Log.ERROR, AnchorStore.class, e);
+        }
+    }
+
+    /* Replace the file with the given (current) records (on the writer
+     * thread). */
+    private static void rewrite(List<Record> records) {
+        File file = getFile();
+        if(file == null) {
+            return;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            file.getParentFile().mkdirs();
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                for(Record record: records) {
+                    record.write(out);
+                }
+            } finally {
+                out.close();
+            }
+            if(!temp.renameTo(file)
+                    && !(file.delete() && temp.renameTo(file))) {
+                throw new IOException("Could not replace " + file);
+            }
+        } catch(IOException e) {
+            Log.log(Log.ERROR, AnchorStore.class, e);
+        }
+    }
+    // }}}
+
+    // {{{ fingerprint
+
+    /** @return checksum of the text around anchor */
+    private static int checksum(JEditBuffer buffer, int anchor) {
+        int start = Math.max(anchor - WINDOW, 0);
+        int end = Math.min(anchor + WINDOW, buffer.getLength());
+        if(anchor > end) {
+            return 0;
+        }
+        Segment segment = new Segment();
+        buffer.getText(start, end - start, segment);
+        Adler32 adler = new Adler32();
+        for(int i = 0; i < segment.count; i++) {
+            char c = segment.array[segment.offset + i];
+            adler.update(c >>> 8);
+            adler.update(c & 0xff);
+        }
+        return (int)adler.getValue();
+    }
+    // }}}
+}
@@ -2,15 +2,27 @@
 package anchoredselection;
 
 // {{{ Imports
+import org.gjt.sp.jedit.BeanShell;
+import org.gjt.sp.jedit.Buffer;
+import org.gjt.sp.jedit.EditAction;
 import org.gjt.sp.jedit.EditPlugin;
 
 import org.gjt.sp.jedit.jEdit;
 import org.gjt.sp.jedit.View;
 import org.gjt.sp.jedit.EditPane;
+import org.gjt.sp.jedit.GUIUtilities;
+import org.gjt.sp.jedit.gui.OptionsDialog;
 import org.gjt.sp.jedit.textarea.TextArea;
 import org.gjt.sp.jedit.textarea.Selection;
 import org.gjt.sp.jedit.buffer.JEditBuffer;
 
+import javax.swing.SwingUtilities;
+import javax.swing.text.Position;
+import java.awt.EventQueue;
+import java.awt.Window;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Collections;
 import java.util.WeakHashMap;
@@ -22,17 +34,115 @@ public class AnchoredSelectionPlugin extends EditPlugin {
 
     // {{{ Data structures
 
-    /* anchorMap holds the anchor position for each buffer in each text area */
+    /* anchorMap holds the anchor position for each buffer in each text area
+     * (and whether the next caret update of a text area should be ignored) */
     private static AnchorMap anchorMap = new AnchorMap();
-    /* text areas for which the next caret update should be ignored */
-    private static Set<TextArea> skipCaretUpdate = Collections.newSetFromMap(
+    /* text areas whose selection resizing has been postponed (if
+     * coalesceResize is set or during a batch) */
+    private static Set<TextArea> pendingResize = Collections.newSetFromMap(
                                         new WeakHashMap<TextArea, Boolean>());
+    /* whether resizePending has been queued on the EDT */
+    private static boolean resizeScheduled = false;
+    private static final Runnable resizePending = new Runnable() {
+        public void run() {
+            resizeScheduled = false;
+            flushPendingResizes();
+        }
+    };
+    /* nesting depth of explicit batches (see beginBatch) */
+    private static int batchDepth = 0;
+    /* whether a batch has been started for a running macro */
+    private static boolean macroBatch = false;
+    private static final Runnable endMacroBatch = new Runnable() {
+        public void run() {
+            macroBatch = false;
+            if(batchDepth == 0) {
+                flushBatch();
+            }
+        }
+    };
+    /* whether the options dialog is open, i.e. the overridden actions have
+     * been removed (see handleOptionsOpening) */
+    private static boolean optionsOpen = false;
+    /* buffers whose stored anchor has been looked up (see restoreAnchor) */
+    private static Set<JEditBuffer> restoreChecked = Collections.newSetFromMap(
+                                    new WeakHashMap<JEditBuffer, Boolean>());
+    /* mark ring of each buffer (each ring listens to its buffer) */
+    private static Map<JEditBuffer, MarkRing> markRings =
+                        new WeakHashMap<JEditBuffer, MarkRing>();
+    // }}}
+
+    // {{{ Options
+
+    /* Resize the selection once per EDT cycle instead of on every caret
+     * update (see handleCaretUpdate). */
+    private static boolean coalesceResize = false;
+    /* Minimum buffer length for virtual selections (0 to disable them). */
+    private static int virtualSelectionSize = 0;
+    /* Treat rectangular selections as virtual selections. */
+    private static boolean incrementalRect = false;
+    /* Check anchors with a TextAreaState.Guard instead of a buffer listener */
+    private static boolean lazyValidation = false;
+    /* Batch the work of caret updates and widget updates while a macro is
+     * running (see isBatching) */
+    private static boolean batchMacros = false;
+    /* Record Metrics (can also be switched via JMX or Actions) */
+    private static boolean metrics = false;
+    /* Record a trace with TraceRecorder (can also be switched via Actions) */
+    private static boolean trace = false;
+    private static int traceSize = 0;
+    /* Show counts of the anchored selection in the status bar widget (and
+     * count words too) */
+    private static boolean statistics = false;
+    private static boolean statisticsWords = false;
+    /* Remember anchors of closed buffers (see AnchorStore) */
+    private static boolean persistAnchors = false;
+    /* Maximum number of marks per buffer (0 disables the mark ring) */
+    private static int markRingSize = 16;
+
+    /** (Re-)read plugin options. */
+    static void loadOptions() {
+        coalesceResize = jEdit.getBooleanProperty(
+                                OPTION_PREFIX + "coalesce-resize", false);
+        virtualSelectionSize = jEdit.getIntegerProperty(
+                                OPTION_PREFIX + "virtual-selection-size", 0);
+        incrementalRect = jEdit.getBooleanProperty(
+                                OPTION_PREFIX + "incremental-rect", false);
+        lazyValidation = jEdit.getBooleanProperty(
+                                OPTION_PREFIX + "lazy-validation", false);
+        batchMacros = jEdit.getBooleanProperty(
+                                OPTION_PREFIX + "batch-macros", false);
+        statistics = jEdit.getBooleanProperty(
+                                OPTION_PREFIX + "widget.statistics", false);
+        statisticsWords = jEdit.getBooleanProperty(
+                                OPTION_PREFIX + "widget.words", false);
+        persistAnchors = jEdit.getBooleanProperty(
+                                OPTION_PREFIX + "persist-anchors", false);
+        markRingSize = jEdit.getIntegerProperty(
+                                OPTION_PREFIX + "mark-ring.size", 16);
+        boolean recordMetrics = jEdit.getBooleanProperty(
+                                OPTION_PREFIX + "metrics", false);
+        if(recordMetrics != metrics) {
+            metrics = recordMetrics;
+            Metrics.setEnabled(recordMetrics);
+        }
+        boolean recordTrace = jEdit.getBooleanProperty(
+                                OPTION_PREFIX + "trace", false);
+        int recordTraceSize = jEdit.getIntegerProperty(
+                                OPTION_PREFIX + "trace.size", 16384);
+        if(recordTrace != trace || recordTraceSize != traceSize) {
+            trace = recordTrace;
+            traceSize = recordTraceSize;
+            TraceRecorder.setEnabled(recordTrace, recordTraceSize);
+        }
+    }
     // }}}
 
     // {{{ Plug in startup / teardown
 
     /** Override built-in actions and add status bar widgets */
     public void start()	{
+        loadOptions();
         Actions.overrideBuiltInActions();
         StatusBarWidgetManager.start();
         Handlers.start();
@@ -41,8 +151,12 @@ public class AnchoredSelectionPlugin extends EditPlugin {
     /** Remove all listeners, overridden actions and status bar widgets. */
     public void stop()	{
         Handlers.stop();
+        storeAnchors();
+        RangeOperations.shutdown();
+        removeMarkRings();
         StatusBarWidgetManager.stop();
         Actions.removeOverriddenActions();
+        Metrics.unregister();
     }
     // }}}
 
@@ -54,62 +168,454 @@ public class AnchoredSelectionPlugin extends EditPlugin {
      *  Don't do anything if the selection is already as it should be (and
      *  naturally if no anchor exists for the current buffer or skipCaretUpdate
      *  has been set).
+     *
+     *  This is called for every caret movement in anchored selection mode, so
+     *  it only does a single map lookup and does not allocate unless the
+     *  selection has to be resized. With the widget.statistics option set, it
+     *  also queues one refresh of the status bar counts per burst of caret
+     *  updates (see StatusBarWidget.updateStatistics), which allocates an
+     *  event once per burst.
+     *
+     *  If the coalesce-resize option is set, the resizing is postponed until
+     *  the pending events on the EDT have been processed, so that bursts of
+     *  caret updates (key repeat, drag auto-scroll) result in a single resize.
+     *
+     *  Virtual selections (in large buffers, and rectangular selections if
+     *  the incremental-rect option is set) are not resized at all, only the
+     *  lines that entered or left the selection are repainted.
      */
     static void handleCaretUpdate(TextArea textArea) {
-        if(skipCaretUpdate.remove(textArea) || !anchorMap.contains(textArea)) {
+        TextAreaState state = anchorMap.getState(textArea);
+        if(state == null || state.isSuspended()) {
+            return;
+        }
+        if(state.consumeSkipCaretUpdate()) {
+            Metrics.count(Metrics.CARET_UPDATE_SKIPPED);
+            return;
+        }
+        JEditBuffer buffer = textArea.getBuffer();
+        int anchor = state.getAnchorOffset(buffer);
+        if(anchor == TextAreaState.NO_ANCHOR) {
+            return;
+        }
+        if(state.isCollapsed(buffer)) {
+            removeCollapsedAnchor(textArea);
+            return;
+        }
+        if(statistics) {
+            StatusBarWidgetManager.updateStatistics(textArea, anchor);
+        }
+        if(isVirtual(textArea, state, buffer)) {
+            updateVirtualSelection(textArea, state, anchor);
+            return;
+        }
+        if(isBatching()) {
+            pendingResize.add(textArea);
+            return;
+        }
+        if(coalesceResize) {
+            pendingResize.add(textArea);
+            if(!resizeScheduled) {
+                resizeScheduled = true;
+                SwingUtilities.invokeLater(resizePending);
+            }
+            return;
+        }
+        resizeSelection(textArea, state, anchor);
+    }
+
+    /** Apply all postponed selection resizing. */
+    private static void flushPendingResizes() {
+        TextArea[] textAreas = pendingResize.toArray(
+                                    new TextArea[pendingResize.size()]);
+        pendingResize.clear();
+        for(TextArea textArea: textAreas) {
+            resizeSelection(textArea);
+        }
+    }
+
+    /** Apply the postponed selection resizing of textArea (if any). Used
+     *  before actions that need an up-to-date selection. */
+    static void flushPendingResize(TextArea textArea) {
+        if(pendingResize.remove(textArea)) {
+            resizeSelection(textArea);
+        }
+    }
+
+    /**
+     *  Invoke a (plain) caret movement repeatedly and update the anchored
+     *  selection once at the end.
+     *
+     *  Any selection is removed first so that the plain action only moves
+     *  the caret. Caret updates are ignored during the movements.
+     */
+    static void invokeBatched(View view, EditAction action, int repeatCount) {
+        TextArea textArea = view.getTextArea();
+        TextAreaState state = anchorMap.getOrCreateState(textArea);
+        state.suspendCaretUpdates();
+        try {
+            if(textArea.getSelectionCount() > 0) {
+                textArea.selectNone();
+            }
+            for(int i = 0; i < repeatCount; i++) {
+                action.invoke(view);
+            }
+        } finally {
+            state.resumeCaretUpdates();
+        }
+        // a pending skip would swallow the update below
+        state.consumeSkipCaretUpdate();
+        handleCaretUpdate(textArea);
+    }
+
+    /** Create a real selection for a virtual selection (if there is one).
+     *  Used before actions that need the selection. */
+    static void materializeSelection(TextArea textArea) {
+        TextAreaState state = anchorMap.getState(textArea);
+        JEditBuffer buffer = textArea.getBuffer();
+        if(state != null && isVirtual(textArea, state, buffer)) {
+            resizeSelection(textArea, state, state.getAnchorOffset(buffer));
+        }
+    }
+
+    /** @return whether the anchored selection of buffer in textArea is only
+     *  painted (see VirtualSelectionPainter). */
+    private static boolean isVirtual(TextArea textArea, TextAreaState state,
+                                    JEditBuffer buffer) {
+        if(incrementalRect && textArea.isRectangularSelectionEnabled()) {
+            return state.hasAnchor(buffer);
+        }
+        return state.isVirtual(buffer);
+    }
+
+    /**
+     *  Repaint the lines that have been added to or removed from a virtual
+     *  selection. Any real selection is removed, as it is out of date.
+     *
+     *  These are the lines between the previous and the current caret, unless
+     *  the column of a rectangular selection changed, which affects all its
+     *  lines.
+     */
+    private static void updateVirtualSelection(TextArea textArea,
+                                        TextAreaState state, int anchor) {
+        if(textArea.getSelectionCount() > 0) {
+            textArea.selectNone();
+        }
+        int caret = textArea.getCaretPosition();
+        int previousCaret = state.swapLastCaret(caret);
+        if(previousCaret == TextAreaState.NO_ANCHOR
+                || previousCaret > textArea.getBufferLength()) {
+            previousCaret = anchor;
+        }
+        int caretLine = textArea.getLineOfOffset(caret);
+        int previousLine = textArea.getLineOfOffset(previousCaret);
+        int startLine = Math.min(caretLine, previousLine);
+        int endLine = Math.max(caretLine, previousLine);
+        if(textArea.isRectangularSelectionEnabled()
+                && VirtualSelectionPainter.getVirtualColumn(textArea, caret)
+                != VirtualSelectionPainter.getVirtualColumn(textArea,
+                                                            previousCaret)) {
+            int anchorLine = textArea.getLineOfOffset(anchor);
+            startLine = Math.min(startLine, anchorLine);
+            endLine = Math.max(endLine, anchorLine);
+        }
+        textArea.invalidateLineRange(startLine, endLine);
+    }
+
+    /** Resize the selection from the anchor to the caret (if there still is
+     *  an anchor). */
+    private static void resizeSelection(TextArea textArea) {
+        TextAreaState state = anchorMap.getState(textArea);
+        if(state == null) {
+            return;
+        }
+        int anchor = state.getAnchorOffset(textArea.getBuffer());
+        if(anchor != TextAreaState.NO_ANCHOR) {
+            resizeSelection(textArea, state, anchor);
+        }
+    }
+
+    /** Resize the selection from anchor to the caret unless it already is. */
+    private static void resizeSelection(TextArea textArea,
+                                        TextAreaState state, int anchor) {
+        TextAreaState.SecondaryAnchors secondary =
+                        state.getSecondaryAnchors(textArea.getBuffer());
+        if(secondary != null) {
+            resizeSelections(textArea, state, anchor, secondary);
             return;
         }
-        int anchor = anchorMap.get(textArea);
         int caret = textArea.getCaretPosition();
         Selection selection = textArea.getSelectionAtOffset(caret);
         if(selection != null
                 && selection.getStart() == Math.min(caret, anchor)
                 && selection.getEnd() == Math.max(caret,anchor)) {
+            Metrics.count(Metrics.CARET_UPDATE_UNCHANGED);
             return;
         }
         // resizeSelection will fire a caret update which can be ignored.
-        skipCaretUpdate(textArea);
+        state.skipCaretUpdate();
+        long start = Metrics.start();
         textArea.resizeSelection(anchor, caret, 0,
                         textArea.isRectangularSelectionEnabled());
+        Metrics.record(Metrics.SELECTION_RESIZE, start);
+    }
+
+    /**
+     *  Resize all selections of a multiple selection anchored selection in a
+     *  single setSelection call (which repaints and fires a caret update
+     *  once, instead of once per selection).
+     *
+     *  The head of each secondary selection is placed relative to the caret
+     *  (see TextAreaState.SecondaryAnchors), clipped to the buffer's lines.
+     */
+    private static void resizeSelections(TextArea textArea,
+                    TextAreaState state, int anchor,
+                    TextAreaState.SecondaryAnchors secondary) {
+        JEditBuffer buffer = textArea.getBuffer();
+        boolean rect = textArea.isRectangularSelectionEnabled();
+        int caret = textArea.getCaretPosition();
+        int caretLine = textArea.getLineOfOffset(caret);
+        int caretColumn = VirtualSelectionPainter.getVirtualColumn(textArea,
+                                                                    caret);
+        int lastLine = textArea.getLineCount() - 1;
+        Selection[] selections = new Selection[secondary.size() + 1];
+        selections[0] = createSelection(anchor, caret, rect);
+        for(int i = 0; i < secondary.size(); i++) {
+            int line = Math.max(0, Math.min(lastLine,
+                                    caretLine + secondary.getLineDelta(i)));
+            int column = Math.max(0,
+                                    caretColumn + secondary.getColumnDelta(i));
+            int head = buffer.getOffsetOfVirtualColumn(line, column, null);
+            if(head == -1) {
+                head = textArea.getLineEndOffset(line) - 1;
+            } else {
+                head += textArea.getLineStartOffset(line);
+            }
+            selections[i + 1] = createSelection(secondary.getAnchorOffset(i),
+                                                head, rect);
+        }
+        // setSelection will fire a caret update which can be ignored.
+        state.skipCaretUpdate();
+        long start = Metrics.start();
+        textArea.setSelection(selections);
+        Metrics.record(Metrics.SELECTION_RESIZE, start);
+    }
+
+    private static Selection createSelection(int anchor, int head,
+                                                boolean rect) {
+        int start = Math.min(anchor, head);
+        int end = Math.max(anchor, head);
+        return rect ? new Selection.Rect(start, end)
+                    : new Selection.Range(start, end);
     }
 
     /**
      *  Update anchor position or remove anchor if its position was removed.
      *
      *  If the the buffer has no anchor left in any text areas remove its
-     *  listener. Also remove caret listeners from any text areas that
-     *  where the anchor was removed and update all status bar widgets.
+     *  listener. Also remove caret listeners from the text areas (showing the
+     *  buffer) where the anchor was removed and update their status bar
+     *  widgets. Nothing else is touched.
+     *
+     *  A removal that hits no anchor costs one snapshot lookup and does not
+     *  allocate (see AnchorMap.remove).
+     *
+     *  Inside a compound edit (replace all, macros) only the first removal is
+     *  checked. Then the anchors of the buffer are guarded and the guards are
+     *  checked once the transaction is complete (see
+     *  handleTransactionComplete). Like with lazy validation the deletion of
+     *  text that was inserted right at the anchor during the edit is not
+     *  noticed (see TextAreaState.Guard).
      */
     static void handlePreContentRemoved(JEditBuffer buffer,
                                                 int offset, int length) {
-        anchorMap.remove(buffer, offset, length);
+        if(!EventQueue.isDispatchThread()) {
+            handlePreContentRemovedLater(buffer, offset, length);
+            return;
+        }
+        if(anchorMap.isBulk(buffer)) {
+            return;
+        }
+        List<TextArea> unanchored = anchorMap.remove(buffer, offset, length);
+        if(buffer.insideCompoundEdit() && anchorMap.contains(buffer)) {
+            anchorMap.startBulk(buffer);
+        }
+        if(unanchored.isEmpty()) {
+            return;
+        }
+        Metrics.count(Metrics.ANCHOR_INVALIDATED, unanchored.size());
+        updateUnanchored(buffer, unanchored);
+    }
+
+    /** Removal in a buffer that is modified outside the EDT (e.g. by an I/O
+     *  thread). The anchors are found now, while the removed range is valid,
+     *  but removed on the EDT, which owns all other plugin state. */
+    private static void handlePreContentRemovedLater(final JEditBuffer buffer,
+                                                int offset, int length) {
+        final List<Position> removed =
+                                anchorMap.findRemoved(buffer, offset, length);
+        if(removed.isEmpty()) {
+            return;
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                List<TextArea> unanchored = anchorMap.remove(buffer, removed);
+                if(!unanchored.isEmpty()) {
+                    Metrics.count(Metrics.ANCHOR_INVALIDATED,
+                                    unanchored.size());
+                    updateUnanchored(buffer, unanchored);
+                }
+            }
+        });
+    }
+
+    /** At the end of a compound edit remove the anchors whose guard reports
+     *  that the anchored text has been removed during the edit. Guards are
+     *  only set on the EDT (see handlePreContentRemoved), so transactions of
+     *  other threads are ignored. */
+    static void handleTransactionComplete(JEditBuffer buffer) {
+        if(!EventQueue.isDispatchThread() || !anchorMap.isBulk(buffer)) {
+            return;
+        }
+        List<TextArea> unanchored = anchorMap.endBulk(buffer);
+        if(unanchored.isEmpty()) {
+            return;
+        }
+        Metrics.count(Metrics.ANCHOR_INVALIDATED, unanchored.size());
+        updateUnanchored(buffer, unanchored);
+    }
+
+    /** Remove the anchor of the current buffer of textArea after its guard
+     *  reported that the anchored text has been removed. */
+    private static void removeCollapsedAnchor(TextArea textArea) {
+        Metrics.count(Metrics.ANCHOR_INVALIDATED);
+        anchorMap.remove(textArea);
+        updateUnanchored(textArea.getBuffer(),
+                        Collections.singletonList(textArea));
+    }
+
+    /** Remove listeners, virtual selection painters and update widgets after
+     *  anchors of buffer have been removed from the given text areas. */
+    private static void updateUnanchored(JEditBuffer buffer,
+                                        Collection<TextArea> unanchored) {
         if(!anchorMap.contains(buffer)) {
             Handlers.bufferHandler.removeFrom(buffer);
         }
-        for(View view: jEdit.getViews()) {
-            TextArea textArea = view.getTextArea();
-            if(hasAnchor(textArea)) {
-                StatusBarWidgetManager.updateWidget(view, true);
-            } else {
-                Handlers.caretHandler.removeFrom(textArea);
+        for(TextArea textArea: unanchored) {
+            if(textArea.getBuffer() != buffer || hasAnchor(textArea)) {
+                continue;
+            }
+            Handlers.caretHandler.removeFrom(textArea);
+            Handlers.virtualSelectionHandler.removeFrom(textArea);
+            View view = GUIUtilities.getView(textArea);
+            if(view != null && view.getTextArea() == textArea) {
                 StatusBarWidgetManager.updateWidget(view, false);
             }
         }
     }
 
-    /** If the buffer changes add or remove the caret listener of the edit panes
-     *  text area and update the status bar widget. */
+    /** If the buffer changes add or remove the caret listener (and the virtual
+     *  selection painter) of the edit panes text area and update the status
+     *  bar widget. */
     static void handleBufferChanged(EditPane editPane) {
+        restoreAnchor(editPane);
         TextArea textArea = editPane.getTextArea();
         boolean isAnchored = hasAnchor(textArea);
         if(isAnchored) {
             Handlers.caretHandler.listenTo(textArea);
+            if(incrementalRect || anchorMap.getState(textArea).isVirtual(
+                                                    textArea.getBuffer())) {
+                Handlers.virtualSelectionHandler.listenTo(textArea);
+            } else {
+                Handlers.virtualSelectionHandler.removeFrom(textArea);
+            }
+            restoreSelection(textArea);
         } else {
             Handlers.caretHandler.removeFrom(textArea);
+            Handlers.virtualSelectionHandler.removeFrom(textArea);
         }
         StatusBarWidgetManager.updateWidget(editPane.getView(), isAnchored);
     }
 
+    /** Before an edit pane switches to another buffer, remember the anchored
+     *  selection (see restoreSelection). */
+    static void handleBufferChanging(EditPane editPane) {
+        TextArea textArea = editPane.getTextArea();
+        TextAreaState state = anchorMap.getState(textArea);
+        if(state == null) {
+            return;
+        }
+        JEditBuffer buffer = textArea.getBuffer();
+        int anchor = state.getAnchorOffset(buffer);
+        if(anchor == TextAreaState.NO_ANCHOR
+                || isVirtual(textArea, state, buffer)) {
+            return;
+        }
+        flushPendingResize(textArea);
+        state.cacheSelection(buffer, new TextAreaState.SelectionSnapshot(
+                textArea.getSelection(), textArea.getCaretPosition(), anchor,
+                buffer.getLength()));
+    }
+
+    /**
+     *  Restore the anchored selection of the current buffer of textArea as it
+     *  was when the buffer was switched away from (including the virtual
+     *  width of rectangular selections), if caret, anchor and buffer length
+     *  are unchanged. Otherwise the selection is resized on the next caret
+     *  update as usual.
+     */
+    private static void restoreSelection(TextArea textArea) {
+        TextAreaState state = anchorMap.getState(textArea);
+        JEditBuffer buffer = textArea.getBuffer();
+        TextAreaState.SelectionSnapshot snapshot =
+                                        state.takeCachedSelection(buffer);
+        if(snapshot == null) {
+            return;
+        }
+        Selection[] selections = snapshot.getSelections(
+                                    textArea.getCaretPosition(),
+                                    state.getAnchorOffset(buffer),
+                                    buffer.getLength());
+        if(selections == null || selections.length == 0) {
+            return;
+        }
+        // setSelection will fire a caret update which can be ignored.
+        state.skipCaretUpdate();
+        textArea.setSelection(selections);
+    }
+
+    /** Restore stored anchors of a buffer that has been loaded in the edit
+     *  panes showing it. */
+    static void handleBufferLoaded(Buffer buffer) {
+        if(!persistAnchors) {
+            return;
+        }
+        for(View view: jEdit.getViews()) {
+            for(EditPane editPane: view.getEditPanes()) {
+                if(editPane.getBuffer() == buffer) {
+                    restoreAnchor(editPane);
+                    StatusBarWidgetManager.updateWidget(view,
+                                        hasAnchor(view.getTextArea()));
+                }
+            }
+        }
+    }
+
+    /** Drop the cached selections of a buffer that is being closed. Store
+     *  its anchor (or forget the stored one if the anchor has been
+     *  removed). */
+    static void handleBufferClosing(Buffer buffer) {
+        anchorMap.removeCachedSelections(buffer);
+        if(!persistAnchors || buffer.isUntitled()) {
+            return;
+        }
+        int anchor = anchorMap.get(buffer);
+        if(anchor != TextAreaState.NO_ANCHOR
+                || restoreChecked.contains(buffer)) {
+            AnchorStore.store(buffer.getPath(), buffer, anchor);
+        }
+    }
+
     /** If the edit pane changes update the status bar widget. */
     static void handleEditPaneChanged(View view) {
         StatusBarWidgetManager.updateWidget(view,
@@ -119,27 +625,144 @@ public class AnchoredSelectionPlugin extends EditPlugin {
     /** If the options dialog is opened hide overridden actions.
      *  (This handler might be called multiple times.) */
     static void handleOptionsOpening() {
+        if(optionsOpen) {
+            return;
+        }
+        optionsOpen = true;
         Actions.removeOverriddenActions();
     }
 
-    /** If options dialog is closed override built-in actions.
-     *  (This handler will be called multiple times.) */
+    /**
+     *  If options dialog has been closed override built-in actions.
+     *
+     *  This handler is called on every view activation and properties change,
+     *  also while the dialog is still open (Apply button, switching windows).
+     *  So the actions are only restored once the dialog is really gone.
+     */
     static void handleOptionsClosed() {
+        if(!optionsOpen || isOptionsDialogShowing()) {
+            return;
+        }
+        optionsOpen = false;
         Actions.overrideBuiltInActions();
     }
+
+    private static boolean isOptionsDialogShowing() {
+        for(Window window: Window.getWindows()) {
+            if(window instanceof OptionsDialog && window.isShowing()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** If properties have changed re-read options. */
+    static void handlePropertiesChanged() {
+        loadOptions();
+    }
     /// }}}
 
     // {{{ Interface
 
+    /** @return the anchor offset in the current buffer of textArea or
+     *  TextAreaState.NO_ANCHOR */
+    static int getAnchor(TextArea textArea) {
+        return anchorMap.get(textArea);
+    }
+
+    /** @return whether the status bar widget shows selection statistics */
+    static boolean isStatisticsEnabled() {
+        return statistics;
+    }
+
+    /** @return whether the selection statistics include words */
+    static boolean isWordCountEnabled() {
+        return statisticsWords;
+    }
+
+    /** @return the anchor offset of a virtual selection in the current buffer
+     *  of textArea or TextAreaState.NO_ANCHOR */
+    static int getVirtualAnchor(TextArea textArea) {
+        TextAreaState state = anchorMap.getState(textArea);
+        JEditBuffer buffer = textArea.getBuffer();
+        if(state == null || !isVirtual(textArea, state, buffer)) {
+            return TextAreaState.NO_ANCHOR;
+        }
+        return state.getAnchorOffset(buffer);
+    }
+
+    /** Whether the current buffer of textArea has a virtual selection. */
+    static boolean isVirtual(TextArea textArea) {
+        return getVirtualAnchor(textArea) != TextAreaState.NO_ANCHOR;
+    }
+
+    /**
+     *  Start a batch: until the matching endBatch, selection resizing and
+     *  status bar widget updates are postponed and then applied once, using
+     *  the final state. Batches may be nested.
+     *
+     *  Actions that need the selection (copy, cut, ending anchored selection
+     *  mode) still see the up-to-date selection.
+     */
+    static void beginBatch() {
+        batchDepth++;
+    }
+
+    /** End a batch (see beginBatch). If no other batch is left, apply the
+     *  postponed work (also if a macro batch is still active). */
+    static void endBatch() {
+        if(batchDepth > 0) {
+            batchDepth--;
+        }
+        if(batchDepth == 0) {
+            flushBatch();
+        }
+    }
+
+    /**
+     *  @return whether selection resizing and widget updates are postponed,
+     *  i.e. whether a batch is active.
+     *
+     *  If the batch-macros option is set, a batch is started automatically
+     *  when a BeanShell script (macro) is running. It ends when the current
+     *  event has been processed, i.e. after the macro.
+     */
+    static boolean isBatching() {
+        if(batchDepth > 0 || macroBatch) {
+            return true;
+        }
+        if(batchMacros && BeanShell.isScriptRunning()) {
+            macroBatch = true;
+            SwingUtilities.invokeLater(endMacroBatch);
+            return true;
+        }
+        return false;
+    }
+
+    /** Apply postponed selection resizing and widget updates. */
+    private static void flushBatch() {
+        flushPendingResizes();
+        StatusBarWidgetManager.flushWidgets();
+    }
+
     /** Skip the next caret update of textArea. */
     static void skipCaretUpdate(TextArea textArea) {
-        skipCaretUpdate.add(textArea);
+        anchorMap.getOrCreateState(textArea).skipCaretUpdate();
     }
 
     /** Whether the current buffer of textArea has an achor set, i.e. whether
      *  anchored selection mode is enabled. */
     static boolean hasAnchor(TextArea textArea) {
-        return anchorMap.contains(textArea);
+        TextAreaState state = anchorMap.getState(textArea);
+        if(state == null) {
+            return false;
+        }
+        JEditBuffer buffer = textArea.getBuffer();
+        if(state.isCollapsed(buffer)) {
+            removeCollapsedAnchor(textArea);
+            return false;
+        }
+        return state.hasAnchor(buffer);
     }
 
     /**
@@ -149,8 +772,21 @@ public class AnchoredSelectionPlugin extends EditPlugin {
      *  at a selection make an educated guess where the selection start is
      *  (whether before or after the caret) and use it as the anchor position.
      *
+     *  In buffers larger than the virtual-selection-size option the selection
+     *  is only painted (see VirtualSelectionPainter). The painter is also
+     *  needed for rectangular selections if the incremental-rect option is
+     *  set.
+     *
+     *  If there are multiple selections, the other selections are anchored
+     *  too (at the same end as the selection at the caret) and extended
+     *  together with it (not for virtual selections).
+     *
+     *  The anchor is also pushed onto the mark ring of the buffer.
+     *
      *  Install listeners (if not already installed) and update the status bar
-     *  widget.
+     *  widget. If the lazy-validation option is set the buffer listener is
+     *  replaced by a guard which is checked on caret updates and status
+     *  queries (see TextAreaState.Guard).
      */
     static void dropAnchor(View view) {
         TextArea textArea = view.getTextArea();
@@ -163,28 +799,212 @@ public class AnchoredSelectionPlugin extends EditPlugin {
                 anchor = selection.getEnd();
             }
         }
-        anchorMap.set(textArea, anchor);
+        dropAnchor(view, textArea, anchor, selection);
+    }
+
+    /** Set anchor in textArea (of view). If there are multiple selections,
+     *  primary is the one at the caret (may be null). */
+    private static void dropAnchor(View view, TextArea textArea, int anchor,
+                                    Selection primary) {
+        int caret = textArea.getCaretPosition();
+        JEditBuffer buffer = textArea.getBuffer();
+        boolean virtual = virtualSelectionSize > 0
+                            && buffer.getLength() >= virtualSelectionSize;
+        anchorMap.set(textArea, anchor, virtual, lazyValidation);
+        if(!virtual && textArea.getSelectionCount() > 1) {
+            setSecondaryAnchors(textArea, primary, anchor <= caret, caret);
+        }
+        pushMark(buffer, anchor);
+        if(virtual || incrementalRect) {
+            Handlers.virtualSelectionHandler.listenTo(textArea);
+            textArea.invalidateLineRange(textArea.getLineOfOffset(anchor),
+                                        textArea.getLineOfOffset(caret));
+        }
         Handlers.caretHandler.listenTo(textArea);
-        Handlers.bufferHandler.listenTo(textArea.getBuffer());
+        if(!lazyValidation) {
+            Handlers.bufferHandler.listenTo(buffer);
+        }
         StatusBarWidgetManager.updateWidget(view, true);
     }
 
+    /** Anchor all selections of textArea other than primary (the selection
+     *  at the caret, may be null) at their start (or end). Their heads are
+     *  placed relative to caret (the current or, on exchange, the future
+     *  caret position). */
+    private static void setSecondaryAnchors(TextArea textArea,
+                Selection primary, boolean anchorAtStart, int caret) {
+        JEditBuffer buffer = textArea.getBuffer();
+        int caretLine = textArea.getLineOfOffset(caret);
+        int caretColumn = VirtualSelectionPainter.getVirtualColumn(textArea,
+                                                                    caret);
+        Selection[] selections = textArea.getSelection();
+        int count = primary == null ? selections.length
+                                    : selections.length - 1;
+        Position[] anchors = new Position[count];
+        int[] lineDeltas = new int[count];
+        int[] columnDeltas = new int[count];
+        int i = 0;
+        for(Selection selection: selections) {
+            if(selection == primary || i == count) {
+                continue;
+            }
+            int anchor = anchorAtStart ? selection.getStart()
+                                        : selection.getEnd();
+            int head = anchorAtStart ? selection.getEnd()
+                                        : selection.getStart();
+            anchors[i] = buffer.createPosition(anchor);
+            lineDeltas[i] = textArea.getLineOfOffset(head) - caretLine;
+            columnDeltas[i] = VirtualSelectionPainter.getVirtualColumn(
+                                            textArea, head) - caretColumn;
+            i++;
+        }
+        anchorMap.getState(textArea).setSecondaryAnchors(buffer,
+                new TextAreaState.SecondaryAnchors(anchors, lineDeltas,
+                                                    columnDeltas));
+    }
+
+    /**
+     *  Restore the stored anchor of the buffer of editPane (see AnchorStore),
+     *  unless it has been looked up before or the text area has an anchor.
+     *  The anchored selection then extends to the caret (which jEdit has
+     *  restored already).
+     */
+    private static void restoreAnchor(EditPane editPane) {
+        Buffer buffer = editPane.getBuffer();
+        if(!persistAnchors || !buffer.isLoaded() || buffer.isUntitled()
+                || restoreChecked.contains(buffer)) {
+            return;
+        }
+        restoreChecked.add(buffer);
+        int anchor = AnchorStore.lookup(buffer.getPath(), buffer);
+        TextArea textArea = editPane.getTextArea();
+        if(anchor == TextAreaState.NO_ANCHOR
+                || anchorMap.get(textArea) != TextAreaState.NO_ANCHOR) {
+            return;
+        }
+        textArea.selectNone();
+        dropAnchor(editPane.getView(), textArea, anchor, null);
+        handleCaretUpdate(textArea);
+    }
+
+    /** Store the anchors of all open buffers (on plugin stop, i.e. also on
+     *  exit) and wait for them to be written. */
+    private static void storeAnchors() {
+        if(persistAnchors) {
+            for(Buffer buffer: jEdit.getBuffers()) {
+                handleBufferClosing(buffer);
+            }
+        }
+        AnchorStore.shutdown();
+    }
+
     /**
      *  End anchored selection mode.
      *
-     *  Forget the anchor position and remove listeners (keep the buffer
-     *  listener if the buffer has an anchor in another text area) and update
-     *  the status bar widget.
+     *  Apply a postponed selection resize (or turn a virtual selection into a
+     *  real one), forget the anchor position, remove listeners and the virtual
+     *  selection painter (keep the buffer listener if the buffer has an
+     *  anchor in another text area) and update the status bar widget.
      */
     static void raiseAnchor(View view) {
         TextArea textArea = view.getTextArea();
         JEditBuffer buffer = textArea.getBuffer();
+        flushPendingResize(textArea);
+        materializeSelection(textArea);
         anchorMap.remove(textArea);
         Handlers.caretHandler.removeFrom(textArea);
+        Handlers.virtualSelectionHandler.removeFrom(textArea);
         if(!anchorMap.contains(buffer)) {
             Handlers.bufferHandler.removeFrom(buffer);
         }
         StatusBarWidgetManager.updateWidget(view, false);
     }
     // }}}
+
+    // {{{ Mark ring methods
+
+    /** Push the caret position onto the mark ring of the current buffer. */
+    static void pushMark(View view) {
+        TextArea textArea = view.getTextArea();
+        pushMark(textArea.getBuffer(), textArea.getCaretPosition());
+    }
+
+    private static void pushMark(JEditBuffer buffer, int offset) {
+        if(markRingSize <= 0) {
+            return;
+        }
+        MarkRing ring = markRings.get(buffer);
+        if(ring == null) {
+            ring = new MarkRing();
+            buffer.addBufferListener(ring);
+            markRings.put(buffer, ring);
+        }
+        ring.push(offset, markRingSize);
+    }
+
+    /** Remove the most recent mark of the current buffer and move the caret
+     *  there (in anchored selection mode the selection follows). */
+    static void popMark(View view) {
+        TextArea textArea = view.getTextArea();
+        MarkRing ring = markRings.get(textArea.getBuffer());
+        int mark = ring == null ? MarkRing.NO_MARK : ring.pop();
+        if(mark == MarkRing.NO_MARK) {
+            view.getToolkit().beep();
+            return;
+        }
+        moveCaret(textArea, mark);
+    }
+
+    /**
+     *  Exchange caret and mark.
+     *
+     *  In anchored selection mode the anchor is the mark, i.e. caret and
+     *  anchor swap places and the selection stays the same. The other
+     *  selections of a multiple selection swap their ends the same way.
+     *  Otherwise the caret moves to the most recent mark of the current
+     *  buffer, which is replaced by the former caret position.
+     */
+    static void exchangeMark(View view) {
+        TextArea textArea = view.getTextArea();
+        JEditBuffer buffer = textArea.getBuffer();
+        int caret = textArea.getCaretPosition();
+        if(hasAnchor(textArea)) {
+            int anchor = anchorMap.get(textArea);
+            flushPendingResize(textArea);
+            TextAreaState state = anchorMap.getState(textArea);
+            boolean multiple = state.getSecondaryAnchors(buffer) != null;
+            Selection primary = textArea.getSelectionAtOffset(caret);
+            anchorMap.set(textArea, caret, state.isVirtual(buffer),
+                            lazyValidation);
+            if(multiple) {
+                // the heads are measured from the caret's new position
+                setSecondaryAnchors(textArea, primary, caret <= anchor,
+                                    anchor);
+            }
+            moveCaret(textArea, anchor);
+            return;
+        }
+        MarkRing ring = markRings.get(buffer);
+        int mark = ring == null ? MarkRing.NO_MARK : ring.pop();
+        if(mark == MarkRing.NO_MARK) {
+            view.getToolkit().beep();
+            return;
+        }
+        ring.push(caret, markRingSize);
+        moveCaret(textArea, mark);
+    }
+
+    private static void moveCaret(TextArea textArea, int offset) {
+        textArea.setCaretPosition(Math.min(offset,
+                                            textArea.getBufferLength()));
+    }
+
+    /** Remove the listeners of all mark rings. */
+    private static void removeMarkRings() {
+        for(Map.Entry<JEditBuffer, MarkRing> entry: markRings.entrySet()) {
+            entry.getKey().removeBufferListener(entry.getValue());
+        }
+        markRings.clear();
+    }
+    // }}}
 }
@@ -13,6 +13,7 @@ import javax.swing.event.CaretListener;
 import javax.swing.event.CaretEvent;
 
 import org.gjt.sp.jedit.EditBus;
+import org.gjt.sp.jedit.msg.BufferUpdate;
 import org.gjt.sp.jedit.msg.EditPaneUpdate;
 import org.gjt.sp.jedit.msg.ViewUpdate;
 import org.gjt.sp.jedit.msg.PropertiesChanging;
@@ -40,6 +41,7 @@ public class Handlers {
         EditBus.removeFromBus(instance);
         bufferHandler.removeAll();
         caretHandler.removeAll();
+        virtualSelectionHandler.removeAll();
     }
     // }}}
 
@@ -47,24 +49,49 @@ public class Handlers {
     @EditBus.EBHandler
     public void handleEditPaneUpdate(EditPaneUpdate msg) {
         if(EditPaneUpdate.BUFFER_CHANGED.equals(msg.getWhat())) {
+            long start = Metrics.start();
             AnchoredSelectionPlugin.handleBufferChanged(msg.getEditPane());
+            Metrics.record(Metrics.EDIT_BUS_MESSAGE, start);
+        } else if(EditPaneUpdate.BUFFER_CHANGING.equals(msg.getWhat())) {
+            long start = Metrics.start();
+            AnchoredSelectionPlugin.handleBufferChanging(msg.getEditPane());
+            Metrics.record(Metrics.EDIT_BUS_MESSAGE, start);
+        }
+    }
+
+    @EditBus.EBHandler
+    public void handleBufferUpdate(BufferUpdate msg) {
+        Object what = msg.getWhat();
+        if(BufferUpdate.LOADED.equals(what)) {
+            long start = Metrics.start();
+            AnchoredSelectionPlugin.handleBufferLoaded(msg.getBuffer());
+            Metrics.record(Metrics.EDIT_BUS_MESSAGE, start);
+        } else if(BufferUpdate.CLOSING.equals(what)) {
+            long start = Metrics.start();
+            AnchoredSelectionPlugin.handleBufferClosing(msg.getBuffer());
+            Metrics.record(Metrics.EDIT_BUS_MESSAGE, start);
         }
     }
 
     @EditBus.EBHandler
     public void handleViewUpdate(ViewUpdate msg) {
+        long start = Metrics.start();
         Object what = msg.getWhat();
         if(ViewUpdate.EDIT_PANE_CHANGED.equals(what)) {
             AnchoredSelectionPlugin.handleEditPaneChanged(msg.getView());
+        } else if(ViewUpdate.CLOSED.equals(what)) {
+            StatusBarWidgetManager.removeWidget(msg.getView());
         } else if(ViewUpdate.ACTIVATED.equals(what)) {
             // Workaround for missing PropertiesChanging when canceling
             // combined options dialog
             AnchoredSelectionPlugin.handleOptionsClosed();
         }
+        Metrics.record(Metrics.EDIT_BUS_MESSAGE, start);
     }
 
     @EditBus.EBHandler
     public void handlePropertiesChanged(PropertiesChanged msg) {
+        AnchoredSelectionPlugin.handlePropertiesChanged();
         AnchoredSelectionPlugin.handleOptionsClosed();
     }
 
@@ -82,8 +109,10 @@ public class Handlers {
     static Handler<TextArea> caretHandler = new Handler<TextArea>() {
         CaretListener listener = new CaretListener() {
             public void caretUpdate(CaretEvent event) {
+                long start = Metrics.start();
                 AnchoredSelectionPlugin.handleCaretUpdate(
                         (TextArea)event.getSource());
+                Metrics.record(Metrics.CARET_UPDATE, start);
             }
         };
         void addListener(TextArea textArea) {
@@ -94,12 +123,28 @@ public class Handlers {
         }
     };
 
+    /** Not a listener but the painter of virtual selections (see
+     *  VirtualSelectionPainter) which is managed the same way. */
+    static Handler<TextArea> virtualSelectionHandler = new Handler<TextArea>() {
+        void addListener(TextArea textArea) {
+            VirtualSelectionPainter.install(textArea);
+        }
+        void removeListener(TextArea textArea) {
+            VirtualSelectionPainter.uninstall(textArea);
+        }
+    };
+
     static Handler<JEditBuffer> bufferHandler = new Handler<JEditBuffer>() {
         BufferAdapter listener = new BufferAdapter() {
             public void preContentRemoved(JEditBuffer buffer, int startLine,
                                             int offset, int lines, int length) {
+                long start = Metrics.start();
                 AnchoredSelectionPlugin.handlePreContentRemoved(
                         buffer, offset, length);
+                Metrics.record(Metrics.CONTENT_REMOVED, start);
+            }
+            public void transactionComplete(JEditBuffer buffer) {
+                AnchoredSelectionPlugin.handleTransactionComplete(buffer);
             }
         };
         void addListener(JEditBuffer buffer) {
@@ -0,0 +1,153 @@
+// :indentSize=4:tabSize=4:noTabs=true:folding=explicit:
+package anchoredselection;
+
+// {{{ Imports
+import org.gjt.sp.jedit.buffer.BufferAdapter;
+import org.gjt.sp.jedit.buffer.JEditBuffer;
+// }}}
+
+/**
+ *  Ring of remembered caret positions (marks) of a buffer, similar to the
+ *  Emacs mark ring.
+ *
+ *  Marks are stored as offsets in a sorted int array (with the push order in
+ *  a parallel array) instead of one Position per mark. The ring is its own
+ *  buffer listener: inserts and removals shift the offsets behind them, the
+ *  affected range is found by binary search. Marks inside removed text are
+ *  deleted.
+ *
+ *  Buffer listeners may fire outside the EDT, so all methods are
+ *  synchronized.
+ */
+class MarkRing extends BufferAdapter {
+    /** Offset returned by {@link #pop} if the ring is empty. */
+    static final int NO_MARK = -1;
+
+    // {{{ data structures
+    /* mark offsets (sorted) and their push order (higher is newer) */
+    private int[] offsets = new int[8];
+    private long[] stamps = new long[8];
+    private int size = 0;
+    private long nextStamp = 0L;
+    // }}}
+
+    // {{{ ring methods
+
+    /** Add a mark at offset. If the ring holds more than capacity marks the
+     *  oldest one is dropped. */
+    synchronized void push(int offset, int capacity) {
+        if(capacity <= 0) {
+            return;
+        }
+        while(size >= capacity) {
+            delete(find(false));
+        }
+        if(size == offsets.length) {
+            int[] newOffsets = new int[size * 2];
+            long[] newStamps = new long[size * 2];
+            System.arraycopy(offsets, 0, newOffsets, 0, size);
+            System.arraycopy(stamps, 0, newStamps, 0, size);
+            offsets = newOffsets;
+            stamps = newStamps;
+        }
+        int index = upperBound(offset);
+        System.arraycopy(offsets, index, offsets, index + 1, size - index);
+        System.arraycopy(stamps, index, stamps, index + 1, size - index);
+        offsets[index] = offset;
+        stamps[index] = nextStamp++;
+        size++;
+    }
+
+    /** Remove the most recently pushed mark.
+     *  @return its offset or NO_MARK */
+    synchronized int pop() {
+        if(size == 0) {
+            return NO_MARK;
+        }
+        int index = find(true);
+        int offset = offsets[index];
+        delete(index);
+        return offset;
+    }
+    // }}}
+
+    // {{{ BufferListener implementation
+
+    /** Shift marks behind the inserted text (a mark at offset stays in front
+     *  of it). */
+    @Override
+    public synchronized void contentInserted(JEditBuffer buffer, int startLine,
+                                    int offset, int numLines, int length) {
+        for(int i = upperBound(offset); i < size; i++) {
+            offsets[i] += length;
+        }
+    }
+
+    /** Delete marks inside the removed text and shift marks behind it. */
+    @Override
+    public synchronized void contentRemoved(JEditBuffer buffer, int startLine,
+                                    int offset, int numLines, int length) {
+        int start = upperBound(offset);
+        int end = lowerBound(offset + length);
+        if(end > start) {
+            System.arraycopy(offsets, end, offsets, start, size - end);
+            System.arraycopy(stamps, end, stamps, start, size - end);
+            size -= end - start;
+        }
+        for(int i = start; i < size; i++) {
+            offsets[i] -= length;
+        }
+    }
+    // }}}
+
+    // {{{ private methods
+
+    /** @return index of the newest (or oldest) mark (size must be > 0) */
+    private int find(boolean newest) {
+        int found = 0;
+        for(int i = 1; i < size; i++) {
+            if(newest ? stamps[i] > stamps[found]
+                        : stamps[i] < stamps[found]) {
+                found = i;
+            }
+        }
+        return found;
+    }
+
+    private void delete(int index) {
+        System.arraycopy(offsets, index + 1, offsets, index, size - index - 1);
+        System.arraycopy(stamps, index + 1, stamps, index, size - index - 1);
+        size--;
+    }
+
+    /** @return index of the first mark at or after offset */
+    private int lowerBound(int offset) {
+        int low = 0;
+        int high = size;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(offsets[middle] < offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /** @return index of the first mark after offset */
+    private int upperBound(int offset) {
+        int low = 0;
+        int high = size;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(offsets[middle] <= offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+    // }}}
+}
@@ -0,0 +1,316 @@
+// :indentSize=4:tabSize=4:noTabs=true:folding=explicit:
+package anchoredselection;
+
+// {{{ Imports
+import org.gjt.sp.util.Log;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+// }}}
+
+/**
+ *  Counters and latency histograms for the work the plugin does on the EDT.
+ *
+ *  Recording is off by default; then every recording method returns after
+ *  checking a static flag. The numbers are available through JMX (see
+ *  MetricsMBean, registered once recording has been switched on) and the
+ *  macro API in Actions.
+ *
+ *  Latencies are kept in histograms with power-of-two buckets (in ns).
+ *
+ *  Timed events are also passed on to the TraceRecorder (if it is enabled).
+ */
+class Metrics {
+    // {{{ event types
+    static final int CARET_UPDATE = 0;
+    static final int CARET_UPDATE_SKIPPED = 1;
+    static final int CARET_UPDATE_UNCHANGED = 2;
+    static final int SELECTION_RESIZE = 3;
+    static final int CONTENT_REMOVED = 4;
+    static final int ANCHOR_INVALIDATED = 5;
+    static final int WIDGET_UPDATE = 6;
+    static final int EDIT_BUS_MESSAGE = 7;
+    static final int ACTION = 8;
+    static final int ACTION_SET_SWAP = 9;
+
+    private static final String[] EVENT_NAMES = new String[] {
+        "caret updates", "caret updates skipped", "caret updates unchanged",
+        "selection resizes", "content removals", "anchor invalidations",
+        "widget updates", "EditBus messages", "wrapped actions",
+        "action set swaps"
+    };
+    // }}}
+
+    // {{{ data structures
+    private static final int BUCKETS = 48;
+    /* per event: count, total nanos, max nanos and histogram buckets */
+    private static final int COUNT = 0;
+    private static final int TOTAL = 1;
+    private static final int MAX = 2;
+    private static final int FIRST_BUCKET = 3;
+    private static final int STRIDE = FIRST_BUCKET + BUCKETS;
+
+    private static boolean enabled = false;
+    private static final AtomicLongArray events =
+                        new AtomicLongArray(EVENT_NAMES.length * STRIDE);
+    private static final ConcurrentMap<String, AtomicLongArray> actions =
+                        new ConcurrentHashMap<String, AtomicLongArray>();
+
+    private static final String OBJECT_NAME =
+                                    "anchoredselection:type=Metrics";
+    private static ObjectName registeredName;
+    // }}}
+
+    // {{{ recording
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Switch recording on or off. The MBean is registered the first time
+     *  recording is switched on, so that the MBean server is not started
+     *  while metrics are not used. */
+    static void setEnabled(boolean enable) {
+        if(enable) {
+            register();
+        }
+        enabled = enable;
+    }
+
+    /** @return start time for {@link #record} (0 if neither metrics nor
+     *  the TraceRecorder are recording) */
+    static long start() {
+        return enabled || TraceRecorder.isEnabled() ? System.nanoTime() : 0L;
+    }
+
+    /** Count an event without latency. */
+    static void count(int event) {
+        if(enabled) {
+            events.incrementAndGet(event * STRIDE + COUNT);
+        }
+    }
+
+    /** Count multiple occurrences of an event without latency. */
+    static void count(int event, int times) {
+        if(enabled) {
+            events.addAndGet(event * STRIDE + COUNT, times);
+        }
+    }
+
+    /** Count an event and record its latency since start. */
+    static void record(int event, long start) {
+        if(start == 0L) {
+            return;
+        }
+        long end = System.nanoTime();
+        if(enabled) {
+            add(events, event * STRIDE, end - start);
+        }
+        TraceRecorder.record(event, -1, start, end);
+    }
+
+    /** Count an invocation of a wrapped action and record its latency. */
+    static void recordAction(String actionName, long start) {
+        if(start == 0L) {
+            return;
+        }
+        long end = System.nanoTime();
+        if(TraceRecorder.isEnabled()) {
+            TraceRecorder.record(ACTION, TraceRecorder.getNameId(actionName),
+                                start, end);
+        }
+        if(!enabled) {
+            return;
+        }
+        add(events, ACTION * STRIDE, end - start);
+        AtomicLongArray action = actions.get(actionName);
+        if(action == null) {
+            actions.putIfAbsent(actionName, new AtomicLongArray(STRIDE));
+            action = actions.get(actionName);
+        }
+        add(action, 0, end - start);
+    }
+
+    private static void add(AtomicLongArray array, int base, long nanos) {
+        array.incrementAndGet(base + COUNT);
+        array.addAndGet(base + TOTAL, nanos);
+        long max;
+        do {
+            max = array.get(base + MAX);
+        } while(nanos > max && !array.compareAndSet(base + MAX, max, nanos));
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(nanos),
+                                BUCKETS - 1);
+        array.incrementAndGet(base + FIRST_BUCKET + bucket);
+    }
+
+    static void reset() {
+        for(int i = 0; i < events.length(); i++) {
+            events.set(i, 0L);
+        }
+        actions.clear();
+    }
+    // }}}
+
+    // {{{ queries
+
+    static long getCount(int event) {
+        return events.get(event * STRIDE + COUNT);
+    }
+
+    static String getEventName(int event) {
+        return event >= 0 && event < EVENT_NAMES.length
+                ? EVENT_NAMES[event] : "";
+    }
+
+    /** @return invocation counts of wrapped actions by name */
+    static Map<String, Long> getActionCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for(Map.Entry<String, AtomicLongArray> entry: actions.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get(COUNT));
+        }
+        return counts;
+    }
+
+    /** @return a human readable summary of all counters and latencies */
+    static String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append("event: count, mean / p50 / p99 / max (us)\n");
+        for(int event = 0; event < EVENT_NAMES.length; event++) {
+            appendLine(report, EVENT_NAMES[event], events, event * STRIDE);
+        }
+        Map<String, AtomicLongArray> sorted =
+                        new TreeMap<String, AtomicLongArray>(actions);
+        for(Map.Entry<String, AtomicLongArray> entry: sorted.entrySet()) {
+            appendLine(report, "action " + entry.getKey(),
+                        entry.getValue(), 0);
+        }
+        return report.toString();
+    }
+
+    private static void appendLine(StringBuilder report, String name,
+                                    AtomicLongArray array, int base) {
+        long count = array.get(base + COUNT);
+        long timed = 0L;
+        for(int bucket = 0; bucket < BUCKETS; bucket++) {
+            timed += array.get(base + FIRST_BUCKET + bucket);
+        }
+        report.append(name).append(": ").append(count);
+        if(timed > 0) {
+            report.append(", ")
+                .append(toMicros(array.get(base + TOTAL) / timed))
+                .append(" / ")
+                .append(toMicros(percentile(array, base, timed, 0.5)))
+                .append(" / ")
+                .append(toMicros(percentile(array, base, timed, 0.99)))
+                .append(" / ")
+                .append(toMicros(array.get(base + MAX)));
+        }
+        report.append('\n');
+    }
+
+    /** @return upper bound (in ns) of the bucket containing the percentile */
+    private static long percentile(AtomicLongArray array, int base,
+                                    long timed, double fraction) {
+        long rank = (long)Math.ceil(timed * fraction);
+        long seen = 0L;
+        for(int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += array.get(base + FIRST_BUCKET + bucket);
+            if(seen >= rank) {
+                return 1L << bucket;
+            }
+        }
+        return array.get(base + MAX);
+    }
+
+    private static String toMicros(long nanos) {
+        return String.valueOf(nanos / 1000L);
+    }
+    // }}}
+
+    // {{{ JMX registration
+
+    /** Register the MBean with the platform MBean server (unless it is
+     *  already). */
+    private static synchronized void register() {
+        if(registeredName != null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if(!server.isRegistered(name)) {
+                server.registerMBean(new StandardMBean(new Bean(),
+                                            MetricsMBean.class), name);
+                registeredName = name;
+            }
+        } catch(JMException e) {
+            Log.log(Log.WARNING, Metrics.class, e);
+        }
+    }
+
+    /** Unregister the MBean (if register succeeded). */
+    static synchronized void unregister() {
+        if(registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                                .unregisterMBean(registeredName);
+        } catch(JMException e) {
+            Log.log(Log.WARNING, Metrics.class, e);
+        }
+        registeredName = null;
+    }
+
+    /** JMX view of the static counters. */
+    private static class Bean implements MetricsMBean {
+        public boolean isEnabled() {
+            return Metrics.isEnabled();
+        }
+        public void setEnabled(boolean enabled) {
+            Metrics.setEnabled(enabled);
+        }
+        public long getCaretUpdates() {
+            return getCount(CARET_UPDATE);
+        }
+        public long getCaretUpdatesSkipped() {
+            return getCount(CARET_UPDATE_SKIPPED);
+        }
+        public long getCaretUpdatesUnchanged() {
+            return getCount(CARET_UPDATE_UNCHANGED);
+        }
+        public long getSelectionResizes() {
+            return getCount(SELECTION_RESIZE);
+        }
+        public long getContentRemovals() {
+            return getCount(CONTENT_REMOVED);
+        }
+        public long getAnchorInvalidations() {
+            return getCount(ANCHOR_INVALIDATED);
+        }
+        public long getWidgetUpdates() {
+            return getCount(WIDGET_UPDATE);
+        }
+        public long getActionSetSwaps() {
+            return getCount(ACTION_SET_SWAP);
+        }
+        public Map<String, Long> getActionInvocations() {
+            return getActionCounts();
+        }
+        public String getReport() {
+            return Metrics.getReport();
+        }
+        public void reset() {
+            Metrics.reset();
+        }
+    }
+    // }}}
+}
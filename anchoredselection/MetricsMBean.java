@@ -0,0 +1,23 @@
+// :indentSize=4:tabSize=4:noTabs=true:folding=explicit:
+package anchoredselection;
+
+import java.util.Map;
+
+/** JMX interface of {@link Metrics}. */
+public interface MetricsMBean {
+    boolean isEnabled();
+    void setEnabled(boolean enabled);
+
+    long getCaretUpdates();
+    long getCaretUpdatesSkipped();
+    long getCaretUpdatesUnchanged();
+    long getSelectionResizes();
+    long getContentRemovals();
+    long getAnchorInvalidations();
+    long getWidgetUpdates();
+    long getActionSetSwaps();
+    Map<String, Long> getActionInvocations();
+
+    String getReport();
+    void reset();
+}
@@ -0,0 +1,693 @@
+// :indentSize=4:tabSize=4:noTabs=true:folding=explicit:
+package anchoredselection;
+
+// {{{ Imports
+import org.gjt.sp.jedit.GUIUtilities;
+import org.gjt.sp.jedit.jEdit;
+import org.gjt.sp.jedit.View;
+import org.gjt.sp.jedit.buffer.JEditBuffer;
+import org.gjt.sp.jedit.textarea.TextArea;
+import org.gjt.sp.util.Log;
+
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.text.Segment;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Adler32;
+// }}}
+
+/**
+ *  Bulk operations on the range from the anchor to the caret that run
+ *  outside the EDT: sort lines, unique lines, count regex matches and
+ *  checksum.
+ *
+ *  The range is copied into a snapshot (through a Segment) on the EDT. The
+ *  snapshot is split into chunks at line ends, which are processed in
+ *  parallel by a thread pool (there is no fork-join pool in Java 6). A
+ *  ProgressMonitor shows the processed chunks and allows to cancel. Results
+ *  that replace the range are applied as one compound edit, unless the range
+ *  has been changed in the meantime.
+ */
+class RangeOperations {
+    private static final int CHUNKS_PER_THREAD = 4;
+    /* chars after the end of a chunk that a match starting in it may use */
+    private static final int MATCH_WINDOW = 1 << 16;
+    private static final String PROPERTY_PREFIX = "anchoredselection.bulk.";
+
+    private static ExecutorService pool;
+
+    // {{{ Operation class
+
+    /** An operation on a snapshot. compute runs outside the EDT (and may use
+     *  the pool through the Job), apply runs on the EDT. */
+    abstract static class Operation<R> {
+        /* name for properties (title and messages) */
+        final String name;
+        /* whether the range is extended to whole lines */
+        final boolean linewise;
+        /* whether apply modifies the buffer */
+        final boolean modifies;
+
+        Operation(String name, boolean linewise, boolean modifies) {
+            this.name = name;
+            this.linewise = linewise;
+            this.modifies = modifies;
+        }
+
+        abstract R compute(Job job) throws Exception;
+        abstract void apply(Job job, R result);
+    }
+
+    /** Work on one chunk (text indices from start to end). */
+    interface ChunkTask<T> {
+        T run(int start, int end) throws Exception;
+    }
+    // }}}
+
+    // {{{ operations
+
+    static final Operation<String> SORT_LINES =
+                            new Operation<String>("sort-lines", true, true) {
+        String compute(final Job job) throws Exception {
+            List<String[]> sorted = job.forEachChunk(
+                                            new ChunkTask<String[]>() {
+                public String[] run(int start, int end) {
+                    String[] lines = job.getLines(start, end);
+                    Arrays.sort(lines);
+                    return lines;
+                }
+            });
+            // merge pairs of sorted chunks in parallel until one is left
+            while(sorted.size() > 1) {
+                List<Callable<String[]>> merges =
+                                        new ArrayList<Callable<String[]>>();
+                for(int i = 0; i + 1 < sorted.size(); i += 2) {
+                    final String[] a = sorted.get(i);
+                    final String[] b = sorted.get(i + 1);
+                    merges.add(new Callable<String[]>() {
+                        public String[] call() {
+                            return merge(job, a, b);
+                        }
+                    });
+                }
+                String[] odd = sorted.size() % 2 == 1
+                                ? sorted.get(sorted.size() - 1) : null;
+                sorted = job.invokeAll(merges);
+                if(odd != null) {
+                    sorted.add(odd);
+                }
+            }
+            String[] lines = sorted.get(0);
+            // sorting must not lose or add lines (the result replaces them)
+            if(lines.length != job.getLineCount()) {
+                throw new IllegalStateException("Sorted " + lines.length
+                            + " of " + job.getLineCount() + " lines");
+            }
+            return join(job, Arrays.asList(lines));
+        }
+
+        void apply(Job job, String result) {
+            job.replace(result);
+        }
+    };
+
+    static final Operation<String> UNIQUE_LINES =
+                            new Operation<String>("unique-lines", true, true) {
+        String compute(final Job job) throws Exception {
+            List<Set<String>> chunks = job.forEachChunk(
+                                            new ChunkTask<Set<String>>() {
+                public Set<String> run(int start, int end) {
+                    return new LinkedHashSet<String>(
+                                Arrays.asList(job.getLines(start, end)));
+                }
+            });
+            // keep the first occurrence (in chunk order)
+            Set<String> unique = new LinkedHashSet<String>();
+            for(Set<String> chunk: chunks) {
+                job.checkCancelled();
+                unique.addAll(chunk);
+            }
+            return join(job, unique);
+        }
+
+        void apply(Job job, String result) {
+            job.replace(result);
+        }
+    };
+
+    /**
+     *  @return operation that counts the matches of pattern, like a single
+     *  find loop over the range.
+     *
+     *  Each chunk counts the matches that start in it. It matches on the
+     *  whole snapshot with transparent, non-anchoring bounds, so anchors,
+     *  word boundaries and lookaround see the text beyond the chunk. A
+     *  match may extend up to MATCH_WINDOW chars past the chunk end; if one
+     *  hits that limit, the chunk is counted on from there without limit.
+     *  If the last match of a chunk extends into the next chunk, the next
+     *  chunk is counted again from its end (the sequential loop would not
+     *  have started earlier). Only a match that would have needed more than
+     *  the window, but failed without it, is missed.
+     */
+    static Operation<Long> countMatches(final Pattern pattern) {
+        return new Operation<Long>("count-matches", false, false) {
+            Long compute(final Job job) throws Exception {
+                final int length = job.text.length;
+                List<long[]> chunks = job.forEachChunk(
+                                                new ChunkTask<long[]>() {
+                    public long[] run(int start, int end) {
+                        return countMatches(job, pattern, start, end,
+                                    (int)Math.min((long)end + MATCH_WINDOW,
+                                                    length));
+                    }
+                });
+                long count = 0L;
+                int next = 0;
+                for(int i = 0; i < chunks.size(); i++) {
+                    int chunkStart = job.getChunkStart(i);
+                    int chunkEnd = job.getChunkStart(i + 1);
+                    long[] chunk = chunks.get(i);
+                    if(next > chunkStart) {
+                        if(next >= chunkEnd) {
+                            continue;
+                        }
+                        chunk = countMatches(job, pattern, next, chunkEnd,
+                                                length);
+                    } else if(chunk[2] >= 0) {
+                        count += chunk[0];
+                        chunk = countMatches(job, pattern, (int)chunk[2],
+                                                chunkEnd, length);
+                    }
+                    count += chunk[0];
+                    next = (int)chunk[1];
+                }
+                return count;
+            }
+
+            void apply(Job job, Long result) {
+                job.message(new Object[] { result, pattern.pattern() });
+            }
+        };
+    }
+
+    /** Adler-32 checksum of the range in the buffer's encoding (chunks are
+     *  checksummed in parallel and combined). Each chunk is encoded by its
+     *  own encoder, so all chunks but the first leave out what an encoder
+     *  writes before the text (a byte order mark, e.g. for UTF-16). Chunks
+     *  start at line starts, where stateful encodings are back in their
+     *  initial state, so the chunks add up to the encoding of the whole
+     *  range. */
+    static final Operation<long[]> CHECKSUM =
+                            new Operation<long[]>("checksum", false, false) {
+        long[] compute(final Job job) throws Exception {
+            final Charset charset = SelectionWriter.getCharset(job.buffer);
+            final int prefixLength = getPrefixLength(charset);
+            List<long[]> chunks = job.forEachChunk(new ChunkTask<long[]>() {
+                public long[] run(int start, int end) throws Exception {
+                    return checksum(job, charset, start, end,
+                                    start == 0 ? 0 : prefixLength);
+                }
+            });
+            long adler = 1L;
+            long length = 0L;
+            for(long[] chunk: chunks) {
+                adler = combineAdler32(adler, chunk[0], chunk[1]);
+                length += chunk[1];
+            }
+            return new long[] { adler, length };
+        }
+
+        void apply(Job job, long[] result) {
+            job.message(new Object[] { String.format("%08x", result[0]),
+                                        result[1] });
+        }
+    };
+    // }}}
+
+    // {{{ start
+
+    /** Run operation on the anchored range of the current text area of view
+     *  (beeps if there is no anchor). */
+    static <R> void start(View view, final Operation<R> operation) {
+        TextArea textArea = view.getTextArea();
+        JEditBuffer buffer = textArea.getBuffer();
+        int anchor = AnchoredSelectionPlugin.getAnchor(textArea);
+        if(anchor == TextAreaState.NO_ANCHOR
+                || (operation.modifies && !buffer.isEditable())) {
+            view.getToolkit().beep();
+            return;
+        }
+        int caret = textArea.getCaretPosition();
+        int start = Math.min(anchor, caret);
+        int end = Math.max(anchor, caret);
+        if(operation.linewise) {
+            int startLine = textArea.getLineOfOffset(start);
+            int endLine = textArea.getLineOfOffset(end);
+            if(endLine > startLine
+                    && end == textArea.getLineStartOffset(endLine)) {
+                endLine--;
+            }
+            start = textArea.getLineStartOffset(startLine);
+            end = textArea.getLineEndOffset(endLine) - 1;
+        }
+        if(start == end) {
+            view.getToolkit().beep();
+            return;
+        }
+        final Job job = new Job(view, operation.name, buffer, start, end);
+        Thread thread = new Thread("AnchoredSelection " + operation.name) {
+            public void run() {
+                R result = null;
+                Exception error = null;
+                try {
+                    result = operation.compute(job);
+                } catch(Exception e) {
+                    error = e;
+                } finally {
+                    job.finish(operation, result, error);
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Stop the pool (called on plugin stop). */
+    static synchronized void shutdown() {
+        if(pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if(pool == null) {
+            pool = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "AnchoredSelection worker "
+                                + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return pool;
+    }
+    // }}}
+
+    // {{{ Job class
+
+    /** Snapshot of a range and the state of an operation on it. */
+    static class Job {
+        final View view;
+        final String name;
+        final JEditBuffer buffer;
+        final int start;
+        final int end;
+        final int bufferLength;
+        final char[] text;
+        /* chunk boundaries (indices into text, at line starts) */
+        private final int[] bounds;
+        private final AtomicInteger done = new AtomicInteger();
+        private final List<Future<?>> futures = new ArrayList<Future<?>>();
+        private volatile boolean cancelled = false;
+        private final ProgressMonitor monitor;
+        private final Timer timer;
+
+        /* Take the snapshot and show the progress (on the EDT) */
+        Job(View view, String name, JEditBuffer buffer, int start, int end) {
+            this.view = view;
+            this.name = name;
+            this.buffer = buffer;
+            this.start = start;
+            this.end = end;
+            bufferLength = buffer.getLength();
+            Segment segment = new Segment();
+            buffer.getText(start, end - start, segment);
+            text = new char[segment.count];
+            System.arraycopy(segment.array, segment.offset, text, 0,
+                                segment.count);
+            bounds = split(text, Runtime.getRuntime().availableProcessors()
+                                    * CHUNKS_PER_THREAD);
+            monitor = new ProgressMonitor(view,
+                    jEdit.getProperty(PROPERTY_PREFIX + name + ".progress"),
+                    null, 0, bounds.length - 1);
+            timer = new Timer(100, new ActionListener() {
+                public void actionPerformed(ActionEvent evt) {
+                    if(monitor.isCanceled()) {
+                        cancel();
+                    } else {
+                        monitor.setProgress(done.get());
+                    }
+                }
+            });
+            timer.start();
+        }
+
+        /** @return start of chunk i (text length for i == number of
+         *  chunks) */
+        int getChunkStart(int i) {
+            return bounds[i];
+        }
+
+        /** Run task for every chunk in the pool.
+         *  @return results in chunk order */
+        <T> List<T> forEachChunk(final ChunkTask<T> task) throws Exception {
+            List<Callable<T>> calls = new ArrayList<Callable<T>>();
+            for(int i = 0; i + 1 < bounds.length; i++) {
+                final int chunkStart = bounds[i];
+                final int chunkEnd = bounds[i + 1];
+                calls.add(new Callable<T>() {
+                    public T call() throws Exception {
+                        T result = task.run(chunkStart, chunkEnd);
+                        done.incrementAndGet();
+                        return result;
+                    }
+                });
+            }
+            return invokeAll(calls);
+        }
+
+        /** Run calls in the pool (and wait for them).
+         *  @return results in order */
+        <T> List<T> invokeAll(List<Callable<T>> calls) throws Exception {
+            List<Future<T>> submitted = new ArrayList<Future<T>>();
+            synchronized(futures) {
+                checkCancelled();
+                for(Callable<T> call: calls) {
+                    Future<T> future = getPool().submit(call);
+                    submitted.add(future);
+                    futures.add(future);
+                }
+            }
+            List<T> results = new ArrayList<T>(submitted.size());
+            try {
+                for(Future<T> future: submitted) {
+                    results.add(future.get());
+                }
+            } catch(ExecutionException e) {
+                if(e.getCause() instanceof Exception) {
+                    throw (Exception)e.getCause();
+                }
+                throw e;
+            } finally {
+                synchronized(futures) {
+                    futures.removeAll(submitted);
+                }
+            }
+            return results;
+        }
+
+        /** @return lines of the chunk (without line separators) */
+        String[] getLines(int start, int end) {
+            List<String> lines = new ArrayList<String>();
+            int lineStart = start;
+            for(int i = start; i < end; i++) {
+                if(text[i] == '\n') {
+                    lines.add(new String(text, lineStart, i - lineStart));
+                    lineStart = i + 1;
+                }
+            }
+            if(lineStart < end || end == text.length) {
+                lines.add(new String(text, lineStart, end - lineStart));
+            }
+            return lines.toArray(new String[lines.size()]);
+        }
+
+        /** @return number of lines of the snapshot (line ends + 1) */
+        int getLineCount() {
+            int count = 1;
+            for(char c: text) {
+                if(c == '\n') {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        void checkCancelled() {
+            if(cancelled || Thread.currentThread().isInterrupted()) {
+                throw new CancellationException();
+            }
+        }
+
+        /* (on the EDT) */
+        private void cancel() {
+            cancelled = true;
+            synchronized(futures) {
+                for(Future<?> future: futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        /* Close the progress and apply the result (or show the error) on
+         * the EDT. */
+        private <R> void finish(final Operation<R> operation, final R result,
+                                final Exception error) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    timer.stop();
+                    monitor.close();
+                    if(cancelled || error instanceof CancellationException
+                            || error instanceof InterruptedException) {
+                        return;
+                    }
+                    if(error != null) {
+                        Log.log(Log.ERROR, RangeOperations.class, error);
+                        GUIUtilities.error(view,
+                                "anchoredselection.bulk-failed",
+                                new Object[] { error.toString() });
+                        return;
+                    }
+                    operation.apply(Job.this, result);
+                }
+            });
+        }
+
+        /** Replace the range with text in one compound edit, unless it has
+         *  been changed since the snapshot was taken. */
+        void replace(String replacement) {
+            if(!isUnchanged()) {
+                GUIUtilities.error(view, "anchoredselection.bulk-changed",
+                                    null);
+                return;
+            }
+            buffer.beginCompoundEdit();
+            try {
+                buffer.remove(start, end - start);
+                buffer.insert(start, replacement);
+            } finally {
+                buffer.endCompoundEdit();
+            }
+        }
+
+        /** Show the result message of the operation. */
+        void message(Object[] args) {
+            GUIUtilities.message(view, PROPERTY_PREFIX + name, args);
+        }
+
+        private boolean isUnchanged() {
+            if(buffer.getLength() != bufferLength) {
+                return false;
+            }
+            Segment segment = new Segment();
+            buffer.getText(start, end - start, segment);
+            for(int i = 0; i < text.length; i++) {
+                if(segment.array[segment.offset + i] != text[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    // }}}
+
+    // {{{ helper methods
+
+    /** @return chunk boundaries: 0, positions after line ends and length */
+    private static int[] split(char[] text, int chunks) {
+        int[] bounds = new int[chunks + 1];
+        int count = 1;
+        for(int i = 1; i < chunks; i++) {
+            int position = (int)((long)text.length * i / chunks);
+            position = Math.max(position, bounds[count - 1] + 1);
+            while(position < text.length && text[position - 1] != '\n') {
+                position++;
+            }
+            if(position >= text.length) {
+                break;
+            }
+            bounds[count++] = position;
+        }
+        bounds[count++] = text.length;
+        return Arrays.copyOf(bounds, count);
+    }
+
+    private static String[] merge(Job job, String[] a, String[] b) {
+        String[] merged = new String[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        for(int k = 0; k < merged.length; k++) {
+            if((k & 0xffff) == 0) {
+                job.checkCancelled();
+            }
+            if(j == b.length || (i < a.length && a[i].compareTo(b[j]) <= 0)) {
+                merged[k] = a[i++];
+            } else {
+                merged[k] = b[j++];
+            }
+        }
+        return merged;
+    }
+
+    private static String join(Job job, Iterable<String> lines) {
+        StringBuilder joined = new StringBuilder(job.text.length);
+        boolean first = true;
+        for(String line: lines) {
+            // also separate empty lines
+            if(!first) {
+                joined.append('\n');
+            }
+            joined.append(line);
+            first = false;
+        }
+        return joined.toString();
+    }
+
+    /**
+     *  Count the matches of pattern that start from start to end (text
+     *  indices; at the end of the text, end itself is included), matching
+     *  up to limit.
+     *
+     *  @return number of matches, the index the next find would start at
+     *  and the start of the first match that hit limit (which is not
+     *  counted) or -1. Matches that hit the end of the text are counted.
+     */
+    private static long[] countMatches(Job job, Pattern pattern, int start,
+                                        int end, int limit) {
+        Matcher matcher = pattern.matcher(CharBuffer.wrap(job.text));
+        matcher.region(start, limit);
+        matcher.useTransparentBounds(true);
+        matcher.useAnchoringBounds(false);
+        // an (empty) match at the end of the text belongs to the last chunk
+        int stop = end == job.text.length ? end + 1 : end;
+        long count = 0L;
+        int next = start;
+        while(matcher.find() && matcher.start() < stop) {
+            if(limit < job.text.length && matcher.hitEnd()) {
+                return new long[] { count, next, matcher.start() };
+            }
+            // after an empty match find starts one char later
+            next = matcher.end() == matcher.start() ? matcher.end() + 1
+                                                    : matcher.end();
+            if((++count & 0x3ff) == 0) {
+                job.checkCancelled();
+            }
+        }
+        return new long[] { count, next, -1L };
+    }
+
+    /** @return Adler-32 and byte length of the encoded chunk, leaving out
+     *  the first skip bytes */
+    private static long[] checksum(Job job, Charset charset, int start,
+                                    int end, int skip) throws Exception {
+        CharsetEncoder encoder = newEncoder(charset);
+        ByteBuffer bytes = ByteBuffer.allocate(1 << 16);
+        CharBuffer chars = CharBuffer.wrap(job.text, start, end - start);
+        Adler32 adler = new Adler32();
+        long length = 0L;
+        boolean flushed = false;
+        while(!flushed) {
+            job.checkCancelled();
+            CoderResult result = encoder.encode(chars, bytes, true);
+            if(result.isUnderflow()) {
+                flushed = !encoder.flush(bytes).isOverflow();
+            } else if(!result.isOverflow()) {
+                result.throwException();
+            }
+            int skipped = Math.min(skip, bytes.position());
+            skip -= skipped;
+            adler.update(bytes.array(), skipped, bytes.position() - skipped);
+            length += bytes.position() - skipped;
+            bytes.clear();
+        }
+        return new long[] { adler.getValue(), length };
+    }
+
+    /** @return number of bytes an encoder of charset writes before the
+     *  encoded text (e.g. a byte order mark), found by encoding one and
+     *  two line ends */
+    private static int getPrefixLength(Charset charset) {
+        try {
+            int one = newEncoder(charset).encode(CharBuffer.wrap("\n"))
+                                            .remaining();
+            int two = newEncoder(charset).encode(CharBuffer.wrap("\n\n"))
+                                            .remaining();
+            return Math.max(2 * one - two, 0);
+        } catch(CharacterCodingException e) {
+            return 0;
+        }
+    }
+
+    private static CharsetEncoder newEncoder(Charset charset) {
+        return charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /** Combine the Adler-32 checksums of two consecutive parts (like zlib's
+     *  adler32_combine). */
+    private static long combineAdler32(long adler1, long adler2,
+                                        long length2) {
+        final long base = 65521L;
+        long remainder = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (remainder * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff)
+                    + base - remainder;
+        if(sum1 >= base) {
+            sum1 -= base;
+        }
+        if(sum1 >= base) {
+            sum1 -= base;
+        }
+        if(sum2 >= base << 1) {
+            sum2 -= base << 1;
+        }
+        if(sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | (sum2 << 16);
+    }
+    // }}}
+}
@@ -0,0 +1,148 @@
+// :indentSize=4:tabSize=4:noTabs=true:folding=explicit:
+package anchoredselection;
+
+// {{{ Imports
+import org.gjt.sp.jedit.buffer.JEditBuffer;
+import org.gjt.sp.jedit.textarea.TextArea;
+
+import javax.swing.text.Segment;
+// }}}
+
+/**
+ *  Character, line and word counts of the range from the anchor to the caret
+ *  (shown by StatusBarWidget).
+ *
+ *  Characters and lines are computed from the offsets. Words are counted
+ *  incrementally: on a caret movement only the text between the previous
+ *  and the current caret is scanned. This relies on word starts being
+ *  additive, i.e. the word starts of a range are the sum of those of its
+ *  parts, if a word start is a word character that does not follow another
+ *  word character in the buffer. Only the first character of the range needs
+ *  a correction, as a word there is cut off but still counts.
+ *
+ *  The counts are recomputed from scratch if the text area, the buffer, the
+ *  anchor or the buffer length changed (the latter catches edits in other
+ *  text areas), or if the caret moved across the anchor.
+ */
+class SelectionStatistics {
+    // {{{ data structures
+    private final Segment segment = new Segment();
+    /* state the counts refer to (textArea is null if there are none) */
+    private TextArea textArea;
+    private JEditBuffer buffer;
+    private int anchor;
+    private int caret;
+    private int bufferLength;
+    private boolean countWords;
+    /* counts */
+    private int characters;
+    private int lines;
+    private int wordStarts;
+    private int words;
+    // }}}
+
+    // {{{ update methods
+
+    /**
+     *  Update the counts for the range from anchor to the caret of textArea.
+     *  Words are only counted if countWords is set.
+     *
+     *  @return whether any count changed
+     */
+    boolean update(TextArea textArea, int anchor, boolean countWords) {
+        JEditBuffer buffer = textArea.getBuffer();
+        int caret = textArea.getCaretPosition();
+        int oldCharacters = characters;
+        int oldLines = lines;
+        int oldWords = words;
+        boolean valid = this.textArea == textArea && this.buffer == buffer
+                && this.anchor == anchor && this.countWords == countWords
+                && bufferLength == buffer.getLength();
+        if(countWords) {
+            if(!valid || (caret < anchor) != (this.caret < anchor)) {
+                wordStarts = countWordStarts(buffer, Math.min(anchor, caret),
+                                            Math.max(anchor, caret));
+            } else if(caret != this.caret) {
+                int delta = countWordStarts(buffer, Math.min(caret, this.caret),
+                                            Math.max(caret, this.caret));
+                boolean grown = Math.abs(caret - anchor)
+                                > Math.abs(this.caret - anchor);
+                wordStarts += grown ? delta : -delta;
+            }
+        }
+        this.textArea = textArea;
+        this.buffer = buffer;
+        this.anchor = anchor;
+        this.caret = caret;
+        this.countWords = countWords;
+        bufferLength = buffer.getLength();
+        int start = Math.min(anchor, caret);
+        int end = Math.max(anchor, caret);
+        characters = end - start;
+        lines = start == end ? 0 : textArea.getLineOfOffset(end)
+                                    - textArea.getLineOfOffset(start) + 1;
+        words = countWords ? wordStarts + getCorrection(buffer, start, end)
+                           : 0;
+        return characters != oldCharacters || lines != oldLines
+                || words != oldWords;
+    }
+
+    /** Forget the state (the next update counts from scratch). */
+    void reset() {
+        textArea = null;
+        buffer = null;
+    }
+    // }}}
+
+    // {{{ getters
+
+    int getCharacters() {
+        return characters;
+    }
+
+    int getLines() {
+        return lines;
+    }
+
+    /** @return number of (partial) words, 0 if words are not counted */
+    int getWords() {
+        return words;
+    }
+    // }}}
+
+    // {{{ word counting
+
+    /** @return number of word starts from start to end (see above) */
+    private int countWordStarts(JEditBuffer buffer, int start, int end) {
+        if(start == end) {
+            return 0;
+        }
+        int textStart = Math.max(start - 1, 0);
+        buffer.getText(textStart, end - textStart, segment);
+        int count = 0;
+        boolean previousIsWord = false;
+        for(int i = 0; i < segment.count; i++) {
+            boolean isWord = isWordChar(segment.array[segment.offset + i]);
+            if(isWord && !previousIsWord && textStart + i >= start) {
+                count++;
+            }
+            previousIsWord = isWord;
+        }
+        return count;
+    }
+
+    /** @return 1 if the range starts within a word, else 0 */
+    private int getCorrection(JEditBuffer buffer, int start, int end) {
+        if(start == end || start == 0) {
+            return 0;
+        }
+        buffer.getText(start - 1, 2, segment);
+        return isWordChar(segment.array[segment.offset])
+                && isWordChar(segment.array[segment.offset + 1]) ? 1 : 0;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+    // }}}
+}
@@ -0,0 +1,155 @@
+// :indentSize=4:tabSize=4:noTabs=true:folding=explicit:
+package anchoredselection;
+
+// {{{ Imports
+import org.gjt.sp.jedit.buffer.JEditBuffer;
+import org.gjt.sp.jedit.textarea.Selection;
+
+import javax.swing.text.Segment;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+// }}}
+
+/**
+ *  Writes the text of a selection to a file without building a String of it.
+ *
+ *  The text is read in chunks through a Segment (which usually points into
+ *  the buffer's content, so it is not copied), encoded into a fixed size
+ *  ByteBuffer and written to a FileChannel. Memory use does not depend on the
+ *  size of the selection.
+ */
+class SelectionWriter {
+    /* chunk size in characters */
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    // {{{ data structures
+    private final JEditBuffer buffer;
+    private final CharsetEncoder encoder;
+    private final Segment segment = new Segment();
+    private final ByteBuffer bytes;
+    private FileChannel channel;
+    private long written = 0L;
+    // }}}
+
+    private SelectionWriter(JEditBuffer buffer) {
+        this.buffer = buffer;
+        encoder = getCharset(buffer).newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        bytes = ByteBuffer.allocate((int)Math.ceil(
+                                    CHUNK_SIZE * encoder.maxBytesPerChar()));
+    }
+
+    // {{{ write method
+
+    /**
+     *  Write the text of selection in buffer to file (in the encoding of
+     *  the buffer). Lines end with "\n", like in the buffer's content and on
+     *  copy; each line of a rectangular selection ends with one.
+     *
+     *  @param append whether to append to the file instead of replacing it
+     *  @return number of characters written
+     */
+    static long write(JEditBuffer buffer, Selection selection, File file,
+                        boolean append) throws IOException {
+        SelectionWriter writer = new SelectionWriter(buffer);
+        FileOutputStream out = new FileOutputStream(file, append);
+        writer.channel = out.getChannel();
+        buffer.readLock();
+        try {
+            if(selection instanceof Selection.Rect) {
+                for(int line = selection.getStartLine();
+                        line <= selection.getEndLine(); line++) {
+                    writer.writeRange(selection.getStart(buffer, line),
+                                    selection.getEnd(buffer, line));
+                    writer.writeLineSeparator();
+                }
+            } else {
+                writer.writeRange(selection.getStart(), selection.getEnd());
+            }
+            writer.finish();
+        } finally {
+            buffer.readUnlock();
+            out.close();
+        }
+        return writer.written;
+    }
+    // }}}
+
+    // {{{ private methods
+
+    private void writeRange(int start, int end) throws IOException {
+        int offset = start;
+        while(offset < end) {
+            int length = Math.min(CHUNK_SIZE, end - offset);
+            buffer.getText(offset, length, segment);
+            // don't split a surrogate pair between two chunks
+            if(offset + length < end && length > 1
+                    && Character.isHighSurrogate(
+                            segment.array[segment.offset + length - 1])) {
+                length--;
+            }
+            encode(CharBuffer.wrap(segment.array, segment.offset, length),
+                    false);
+            offset += length;
+            written += length;
+        }
+    }
+
+    private void writeLineSeparator() throws IOException {
+        encode(CharBuffer.wrap("\n"), false);
+        written++;
+    }
+
+    private void encode(CharBuffer chars, boolean endOfInput)
+                                                        throws IOException {
+        while(true) {
+            CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if(result.isOverflow()) {
+                flushBytes();
+            } else if(result.isUnderflow()) {
+                return;
+            } else {
+                result.throwException();
+            }
+        }
+    }
+
+    private void finish() throws IOException {
+        encode(CharBuffer.allocate(0), true);
+        while(encoder.flush(bytes).isOverflow()) {
+            flushBytes();
+        }
+        flushBytes();
+    }
+
+    private void flushBytes() throws IOException {
+        bytes.flip();
+        while(bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        bytes.clear();
+    }
+
+    /** @return charset of the buffer's encoding (or the default one) */
+    static Charset getCharset(JEditBuffer buffer) {
+        String encoding = buffer.getStringProperty(JEditBuffer.ENCODING);
+        try {
+            if(encoding != null) {
+                return Charset.forName(encoding);
+            }
+        } catch(IllegalArgumentException e) {
+            // unknown encoding, use default
+        }
+        return Charset.defaultCharset();
+    }
+    // }}}
+}
@@ -6,18 +6,46 @@ import org.gjt.sp.jedit.jEdit;
 import org.gjt.sp.jedit.View;
 import org.gjt.sp.jedit.gui.statusbar.Widget;
 import org.gjt.sp.jedit.gui.statusbar.ToolTipLabel;
+import org.gjt.sp.jedit.textarea.TextArea;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import java.util.ArrayList;
+import java.util.List;
 //}}}
 
 class StatusBarWidget implements Widget {
     private final String TOOLTIP_PROPERTY =
             "anchoredselection.status.anchor-tooltip";
+    private final String STATISTICS_PROPERTY =
+            "anchoredselection.status.statistics";
+    private final String WORD_STATISTICS_PROPERTY =
+            "anchoredselection.status.statistics-words";
     private final JLabel widget;
     private final View view;
+    private final SelectionStatistics statistics = new SelectionStatistics();
+    /* the state shown by the label (null if it has to be redrawn) */
+    private Boolean shownAnchored = null;
+    private String shownText = null;
+    /* whether the label shows the current statistics counts */
+    private boolean shownStatistics = false;
+    /* label texts and formats (see loadProperties) */
+    private String anchoredText;
+    private String unanchoredText;
+    private LabelFormat statisticsFormat;
+    private LabelFormat wordStatisticsFormat;
+    private final StringBuilder text = new StringBuilder();
+    /* whether refresh has been queued on the EDT */
+    private boolean refreshScheduled = false;
+    private final Runnable refresh = new Runnable() {
+        public void run() {
+            refreshScheduled = false;
+            update();
+        }
+    };
 
     // {{{ Widget interface implementation
     public StatusBarWidget(final View view) {
@@ -30,6 +58,7 @@ class StatusBarWidget implements Widget {
                 Actions.toggleAnchoredSelectionEnabled(view);
             }
         });
+        loadProperties();
     }
 
     public JComponent getComponent() {
@@ -37,6 +66,9 @@ class StatusBarWidget implements Widget {
     }
 
     public void propertiesChanged() {
+        loadProperties();
+        shownAnchored = null;
+        shownStatistics = false;
         update();
     }
     // }}}
@@ -52,18 +84,133 @@ class StatusBarWidget implements Widget {
 
     /* Update widget label - set enabled/disabled depending on isAnchored.
      * Use a fancy anchor glyph if possible, else use the letter "A" where
-     * the case depends on isAnchored as well.
+     * the case depends on isAnchored as well. If the statistics option is
+     * set, the counts of the anchored selection follow the glyph.
      * Called by StatusBarWidgetManager in response to AnchoredSelectionPlugin
-     * methods. */
+     * methods. Does nothing if the label already shows isAnchored. */
     void update(boolean isAnchored) {
-        this.widget.setToolTipText(jEdit.getProperty(TOOLTIP_PROPERTY));
+        if(isAnchored && AnchoredSelectionPlugin.isStatisticsEnabled()) {
+            TextArea textArea = view.getTextArea();
+            int anchor = AnchoredSelectionPlugin.getAnchor(textArea);
+            if(anchor != TextAreaState.NO_ANCHOR) {
+                if(statistics.update(textArea, anchor,
+                            AnchoredSelectionPlugin.isWordCountEnabled())
+                        || !shownStatistics) {
+                    show(true, getStatisticsText());
+                    shownStatistics = true;
+                }
+                return;
+            }
+        }
+        statistics.reset();
+        shownStatistics = false;
+        show(isAnchored, isAnchored ? anchoredText : unanchoredText);
+    }
+
+    /* Refresh the counts of the anchored selection after a caret movement in
+     * textArea. Bursts of caret updates are coalesced into a single refresh
+     * after the pending events, which only scans the text between the
+     * previously counted and the current caret and only sets the label text
+     * if a count changed. Called by StatusBarWidgetManager on caret
+     * updates. */
+    void updateStatistics(TextArea textArea, int anchor) {
+        if(textArea != view.getTextArea() || refreshScheduled) {
+            return;
+        }
+        refreshScheduled = true;
+        SwingUtilities.invokeLater(refresh);
+    }
+
+    private String getStatisticsText() {
+        boolean countWords = AnchoredSelectionPlugin.isWordCountEnabled();
+        text.setLength(0);
+        (countWords ? wordStatisticsFormat : statisticsFormat).format(text,
+                anchoredText, statistics.getCharacters(),
+                statistics.getLines(), statistics.getWords());
+        return text.toString();
+    }
+
+    private void show(boolean isAnchored, String text) {
+        if(shownAnchored != null && shownAnchored == isAnchored
+                && text.equals(shownText)) {
+            return;
+        }
+        long start = Metrics.start();
+        shownAnchored = isAnchored;
+        shownText = text;
+        widget.setEnabled(isAnchored);
+        widget.setText(text);
+        Metrics.record(Metrics.WIDGET_UPDATE, start);
+    }
+
+    /* (Re-)read tooltip and formats and check whether the font supports the
+     * anchor glyph. Only done on creation and propertiesChanged. */
+    private void loadProperties() {
+        widget.setToolTipText(jEdit.getProperty(TOOLTIP_PROPERTY));
         boolean anchorGlyphSupported = widget.getFont().canDisplay(0x2693);
-        if(isAnchored) {
-            widget.setEnabled(true);
-            widget.setText(anchorGlyphSupported ? "\u2693" : "A");
-        } else {
-            widget.setEnabled(false);
-            widget.setText(anchorGlyphSupported ? "\u2693" : "a");
+        anchoredText = anchorGlyphSupported ? "\u2693" : "A";
+        unanchoredText = anchorGlyphSupported ? "\u2693" : "a";
+        statisticsFormat = new LabelFormat(
+                jEdit.getProperty(STATISTICS_PROPERTY, "{0} {1} {2}"));
+        wordStatisticsFormat = new LabelFormat(
+                jEdit.getProperty(WORD_STATISTICS_PROPERTY, "{0} {1} {2} {3}"));
+    }
+    // }}}
+
+    // {{{ LabelFormat class
+
+    /* A statistics label pattern: text with the placeholders {0} (anchor
+     * glyph), {1} (characters), {2} (lines) and {3} (words). Unlike
+     * MessageFormat it appends to a given StringBuilder and takes the counts
+     * as ints, so formatting only allocates if the builder has to grow.
+     * Other text (also other braces) is copied as it is. */
+    private static class LabelFormat {
+        /* literals[i] precedes the argument arguments[i]; the last literal
+         * follows the last argument */
+        private final String[] literals;
+        private final int[] arguments;
+
+        LabelFormat(String pattern) {
+            List<String> literalList = new ArrayList<String>();
+            List<Integer> argumentList = new ArrayList<Integer>();
+            int literalStart = 0;
+            for(int i = 0; i + 2 < pattern.length(); i++) {
+                char digit = pattern.charAt(i + 1);
+                if(pattern.charAt(i) == '{' && digit >= '0' && digit <= '3'
+                        && pattern.charAt(i + 2) == '}') {
+                    literalList.add(pattern.substring(literalStart, i));
+                    argumentList.add(digit - '0');
+                    literalStart = i + 3;
+                    i += 2;
+                }
+            }
+            literalList.add(pattern.substring(literalStart));
+            literals = literalList.toArray(new String[literalList.size()]);
+            arguments = new int[argumentList.size()];
+            for(int i = 0; i < arguments.length; i++) {
+                arguments[i] = argumentList.get(i);
+            }
+        }
+
+        void format(StringBuilder out, String glyph, int characters,
+                    int lines, int words) {
+            for(int i = 0; i < arguments.length; i++) {
+                out.append(literals[i]);
+                switch(arguments[i]) {
+                case 0:
+                    out.append(glyph);
+                    break;
+                case 1:
+                    out.append(characters);
+                    break;
+                case 2:
+                    out.append(lines);
+                    break;
+                default:
+                    out.append(words);
+                }
+            }
+            out.append(literals[arguments.length]);
         }
     }
     // }}}
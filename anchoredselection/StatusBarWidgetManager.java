@@ -3,17 +3,37 @@ package anchoredselection;
 
 //{{{ Imports
 import org.gjt.sp.jedit.jEdit;
+import org.gjt.sp.jedit.ServiceManager;
 import org.gjt.sp.jedit.View;
 import org.gjt.sp.jedit.gui.statusbar.Widget;
 import org.gjt.sp.jedit.gui.statusbar.StatusWidgetFactory;
+import org.gjt.sp.jedit.textarea.JEditTextArea;
+import org.gjt.sp.jedit.textarea.TextArea;
+import javax.swing.Box;
+import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Container;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.Set;
+import java.util.StringTokenizer;
 //}}}
 
 public class StatusBarWidgetManager implements StatusWidgetFactory {
+    /* name of the widget service (see services.xml) */
+    private static final String WIDGET_NAME = "anchorSelect";
+
+    /* widgets by view (removed when the view is closed, see removeWidget) */
     private static Map<View, StatusBarWidget> widgets =
-            new WeakHashMap<View, StatusBarWidget>();
+            new HashMap<View, StatusBarWidget>();
     private static boolean shuttingDown = false;
+    /* views whose widget update is postponed until the end of a batch */
+    private static Set<View> pendingUpdates = new HashSet<View>();
 
     // {{{ StatusWidgetFactory interface implementation
 
@@ -31,51 +51,193 @@ public class StatusBarWidgetManager implements StatusWidgetFactory {
     // {{{ start / stop methods
 
     /* Initialization - called upon plug-in start
-     * Induce status bar redraw which request widget from getWidget */
+     * The plugin is activated lazily, often by a status bar requesting its
+     * widget (which loads this class). So only after the current event has
+     * been handled, and only if a status bar is still missing its widget
+     * (i.e. the plugin has been (re)loaded later), add the widget to that
+     * status bar (see addToStatusBars). */
     static void start() {
-        resetStatusBar();
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                if(!shuttingDown) {
+                    addToStatusBars(getViewsWithoutWidget());
+                }
+            }
+        });
     }
 
     /* Teardown - called upon plug-in unloading
-     * Set shuttingDown state and induce status bar redraw which will request
-     * a widget from getWidget but only get a null. */
+     * Set shuttingDown state (so a status bar rebuild gets a null from
+     * getWidget) and take the widget components out of the status bars. The
+     * other widgets are not touched. */
     static void stop() {
         shuttingDown = true;
-        resetStatusBar();
+        for(StatusBarWidget widget: widgets.values()) {
+            removeComponent(widget.getComponent());
+        }
+        widgets.clear();
+        pendingUpdates.clear();
+    }
+
+    /* Forget the widget of a view that has been closed. */
+    static void removeWidget(View view) {
+        widgets.remove(view);
+        pendingUpdates.remove(view);
+    }
+
+    private static void removeComponent(JComponent component) {
+        Container parent = component.getParent();
+        if(parent != null) {
+            parent.remove(component);
+            // Container.revalidate only exists since Java 7
+            if(parent instanceof JComponent) {
+                ((JComponent)parent).revalidate();
+            } else {
+                parent.invalidate();
+                parent.validate();
+            }
+            parent.repaint();
+        }
     }
     // }}}
 
     // {{{ updateWidget - interface for AnchoredSelectionPlugin methods.
+    /* Postponed until flushWidgets while AnchoredSelectionPlugin is in batch
+     * mode. */
     static void updateWidget(View view, Boolean isAnchored) {
         StatusBarWidget widget = widgets.get(view);
-        if(widget != null) {
+        if(widget == null) {
+            return;
+        }
+        if(AnchoredSelectionPlugin.isBatching()) {
+            pendingUpdates.add(view);
+        } else {
             widget.update(isAnchored);
         }
     }
-    // }}}
 
-    // {{{ resetStatusBar workaround
-    /* Ugly hack to update the statusbar on plugin removal / restart.
-     * Change the "view.status" property so it's no longer equal to
-     * gui.StatusBar.currentBar but StringTokenizer produces the same tokens.
-     * This will induce StatusBar.propertiesChanged to rebuild the status bar
-     * (and request a widget from this factory which will only deliver
-     * if shuttingDown is false, i.e. stop has not been called).
-     */
-    private static void resetStatusBar() {
-        String statusBar = jEdit.getProperty("view.status");
-        if(statusBar == null || statusBar.length() == 0) {
+    /* Update the selection statistics of the widget of the view of textArea
+     * after a caret movement. Postponed like updateWidget. */
+    static void updateStatistics(TextArea textArea, int anchor) {
+        if(!(textArea instanceof JEditTextArea)) {
+            return;
+        }
+        View view = ((JEditTextArea)textArea).getView();
+        StatusBarWidget widget = widgets.get(view);
+        if(widget == null) {
             return;
         }
-        if(statusBar.startsWith(" ")) {
-            statusBar = statusBar.substring(1);
+        if(AnchoredSelectionPlugin.isBatching()) {
+            pendingUpdates.add(view);
         } else {
-            statusBar = " " + statusBar;
+            widget.updateStatistics(textArea, anchor);
+        }
+    }
+
+    /* Apply postponed widget updates (with the current state). */
+    static void flushWidgets() {
+        View[] views = pendingUpdates.toArray(new View[pendingUpdates.size()]);
+        pendingUpdates.clear();
+        for(View view: views) {
+            StatusBarWidget widget = widgets.get(view);
+            if(widget != null) {
+                widget.update();
+            }
+        }
+    }
+    // }}}
+
+    // {{{ getViewsWithoutWidget
+    /* @return views that have no widget although it is configured */
+    private static List<View> getViewsWithoutWidget() {
+        List<View> views = new ArrayList<View>();
+        String statusBar = jEdit.getProperty("view.status");
+        if(statusBar == null) {
+            return views;
+        }
+        boolean configured = false;
+        StringTokenizer tokens = new StringTokenizer(statusBar);
+        while(tokens.hasMoreTokens()) {
+            if(WIDGET_NAME.equals(tokens.nextToken())) {
+                configured = true;
+                break;
+            }
+        }
+        if(!configured) {
+            return views;
         }
-        jEdit.setProperty("view.status", statusBar);
         for(View view: jEdit.getViews()) {
-            view.getStatus().propertiesChanged();
+            if(!widgets.containsKey(view)) {
+                views.add(view);
+            }
+        }
+        return views;
+    }
+    // }}}
+
+    // {{{ addToStatusBars
+    /* Add the widget to the status bars of views that were created before
+     * the plugin was loaded. There is no API to add a single widget, so its
+     * component is inserted directly into the box that holds the widgets of
+     * a status bar (the only Box in it), at the position of its token in the
+     * "view.status" property. Every token before it adds one component,
+     * unless it names a widget that does not exist. If no box is found the
+     * status bar is left as it is; the widget then appears when the status
+     * bar is rebuilt (i.e. its configuration is changed). */
+    private static void addToStatusBars(List<View> views) {
+        String statusBar = jEdit.getProperty("view.status");
+        if(views.isEmpty() || statusBar == null) {
+            return;
+        }
+        int index = 0;
+        StringTokenizer tokens = new StringTokenizer(statusBar);
+        while(tokens.hasMoreTokens()) {
+            String token = tokens.nextToken();
+            if(WIDGET_NAME.equals(token)) {
+                break;
+            }
+            if(!Character.isLetter(token.charAt(0))
+                    || ServiceManager.getService(
+                        StatusWidgetFactory.class.getName(), token) != null) {
+                index++;
+            }
+        }
+        Color foreground = jEdit.getColorProperty("view.status.foreground");
+        Color background = jEdit.getColorProperty("view.status.background");
+        for(View view: views) {
+            Box box = findBox(view.getStatus());
+            if(box == null) {
+                continue;
+            }
+            StatusBarWidget widget = new StatusBarWidget(view);
+            widgets.put(view, widget);
+            JComponent component = widget.getComponent();
+            component.setForeground(foreground);
+            component.setBackground(background);
+            box.add(component, Math.min(index, box.getComponentCount()));
+            widget.update();
+            box.revalidate();
+            box.repaint();
+        }
+    }
+
+    /* @return the first Box in container (depth first) or null */
+    private static Box findBox(Container container) {
+        if(container == null) {
+            return null;
+        }
+        for(Component child: container.getComponents()) {
+            if(child instanceof Box) {
+                return (Box)child;
+            }
+            if(child instanceof Container) {
+                Box box = findBox((Container)child);
+                if(box != null) {
+                    return box;
+                }
+            }
         }
+        return null;
     }
     // }}}
 }
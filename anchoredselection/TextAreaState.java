@@ -0,0 +1,346 @@
+// :indentSize=4:tabSize=4:noTabs=true:folding=explicit:
+package anchoredselection;
+
+// {{{ Imports
+import org.gjt.sp.jedit.buffer.JEditBuffer;
+import org.gjt.sp.jedit.textarea.Selection;
+
+import javax.swing.text.Position;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+// }}}
+
+/**
+ *  Anchored selection state of a single text area: the anchors of its buffers
+ *  and whether the next caret update should be skipped.
+ *
+ *  The anchor of the most recently queried buffer is cached, so that the caret
+ *  update handler gets by with one map lookup (the one for this object) and
+ *  without allocation.
+ *
+ *  Anchors may have a Guard, which allows to check whether the anchored text
+ *  has been removed without listening to the buffer.
+ *
+ *  If there were multiple selections when anchored selection mode started,
+ *  the anchor has SecondaryAnchors for the other selections.
+ *
+ *  The anchored selections of the buffers most recently switched away from
+ *  are cached (see SelectionSnapshot), so they can be restored as they were
+ *  when the buffer is shown again.
+ */
+class TextAreaState {
+    /** Offset returned by {@link #getAnchorOffset} if there is no anchor. */
+    static final int NO_ANCHOR = -1;
+    /* number of cached selection snapshots */
+    private static final int SELECTION_CACHE_SIZE = 8;
+
+    // {{{ data structures
+    private final Map<JEditBuffer, Position> anchors =
+            new WeakHashMap<JEditBuffer, Position>();
+    /* buffers whose anchored selection is only painted (see
+     * VirtualSelectionPainter) */
+    private final Set<JEditBuffer> virtualBuffers = Collections.newSetFromMap(
+                                    new WeakHashMap<JEditBuffer, Boolean>());
+    /* guards of anchors that are validated lazily */
+    private final Map<JEditBuffer, Guard> guards =
+            new WeakHashMap<JEditBuffer, Guard>();
+    /* anchors of the other selections (multiple selections) */
+    private final Map<JEditBuffer, SecondaryAnchors> secondaryAnchors =
+            new WeakHashMap<JEditBuffer, SecondaryAnchors>();
+    /* cache for getAnchor (cachedAnchor may be null) */
+    private WeakReference<JEditBuffer> cachedBuffer;
+    private Position cachedAnchor;
+    private boolean cachedVirtual;
+    private Guard cachedGuard;
+    private SecondaryAnchors cachedSecondary;
+    /* selections of buffers that are not shown (least recently used first) */
+    private final Map<JEditBuffer, SelectionSnapshot> selectionCache =
+            new LinkedHashMap<JEditBuffer, SelectionSnapshot>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(
+                                Map.Entry<JEditBuffer, SelectionSnapshot> e) {
+                    return size() > SELECTION_CACHE_SIZE;
+                }
+            };
+    /* caret position at the last update of a virtual selection of the
+     * cached buffer (reset whenever the cache or the anchor changes) */
+    private int lastCaret = NO_ANCHOR;
+    /* whether the next caret update should be ignored */
+    private boolean skipCaretUpdate = false;
+    /* while positive all caret updates are ignored */
+    private int suspendCount = 0;
+    // }}}
+
+    // {{{ anchor methods
+
+    /** @return anchor of buffer or null */
+    Position getAnchor(JEditBuffer buffer) {
+        if(cachedBuffer == null || cachedBuffer.get() != buffer) {
+            cachedBuffer = new WeakReference<JEditBuffer>(buffer);
+            cachedAnchor = anchors.get(buffer);
+            cachedVirtual = virtualBuffers.contains(buffer);
+            cachedGuard = guards.get(buffer);
+            cachedSecondary = secondaryAnchors.get(buffer);
+            // it may belong to another buffer or an earlier anchor
+            lastCaret = NO_ANCHOR;
+        }
+        return cachedAnchor;
+    }
+
+    /** @return anchor offset in buffer or NO_ANCHOR */
+    int getAnchorOffset(JEditBuffer buffer) {
+        Position anchor = getAnchor(buffer);
+        return anchor == null ? NO_ANCHOR : anchor.getOffset();
+    }
+
+    /** @return whether the anchored selection in buffer is a virtual one */
+    boolean isVirtual(JEditBuffer buffer) {
+        return getAnchor(buffer) != null && cachedVirtual;
+    }
+
+    /** @return whether the anchor of buffer has a guard that reports that the
+     *  anchored text has been removed. */
+    boolean isCollapsed(JEditBuffer buffer) {
+        return getAnchor(buffer) != null && cachedGuard != null
+                && cachedGuard.isCollapsed();
+    }
+
+    /** @return anchors of the other selections of buffer or null */
+    SecondaryAnchors getSecondaryAnchors(JEditBuffer buffer) {
+        return getAnchor(buffer) == null ? null : cachedSecondary;
+    }
+
+    /** Set the anchor of buffer (this removes any secondary anchors). */
+    void setAnchor(JEditBuffer buffer, Position anchor, boolean virtual,
+                    boolean guarded) {
+        anchors.put(buffer, anchor);
+        secondaryAnchors.remove(buffer);
+        if(guarded) {
+            guards.put(buffer, new Guard(buffer, anchor));
+        } else {
+            guards.remove(buffer);
+        }
+        lastCaret = NO_ANCHOR;
+        if(virtual) {
+            virtualBuffers.add(buffer);
+        } else {
+            virtualBuffers.remove(buffer);
+        }
+        cachedBuffer = null;
+    }
+
+    /** Set the anchors of the other selections of buffer (null to remove
+     *  them). The anchor of buffer must have been set. */
+    void setSecondaryAnchors(JEditBuffer buffer, SecondaryAnchors secondary) {
+        if(secondary == null) {
+            secondaryAnchors.remove(buffer);
+        } else {
+            secondaryAnchors.put(buffer, secondary);
+        }
+        cachedBuffer = null;
+    }
+
+    void removeAnchor(JEditBuffer buffer) {
+        anchors.remove(buffer);
+        secondaryAnchors.remove(buffer);
+        virtualBuffers.remove(buffer);
+        guards.remove(buffer);
+        lastCaret = NO_ANCHOR;
+        cachedBuffer = null;
+    }
+
+    boolean hasAnchor(JEditBuffer buffer) {
+        return getAnchor(buffer) != null;
+    }
+    // }}}
+
+    // {{{ virtual selection methods
+
+    /** Remember caret position of the current virtual selection update and
+     *  return the previous one (or NO_ANCHOR if there was none for the
+     *  current anchor of the buffer last passed to getAnchor) */
+    int swapLastCaret(int caret) {
+        int previous = lastCaret;
+        lastCaret = caret;
+        return previous;
+    }
+    // }}}
+
+    // {{{ selection cache methods
+
+    /** Cache the anchored selection of buffer. */
+    void cacheSelection(JEditBuffer buffer, SelectionSnapshot snapshot) {
+        selectionCache.put(buffer, snapshot);
+    }
+
+    /** Remove the cached selection of buffer.
+     *  @return the cached selection or null */
+    SelectionSnapshot takeCachedSelection(JEditBuffer buffer) {
+        return selectionCache.remove(buffer);
+    }
+    // }}}
+
+    // {{{ skip caret update methods
+
+    /** Skip the next caret update. */
+    void skipCaretUpdate() {
+        skipCaretUpdate = true;
+    }
+
+    /** Ignore all caret updates until {@link #resumeCaretUpdates} is called
+     *  (calls may be nested). */
+    void suspendCaretUpdates() {
+        suspendCount++;
+    }
+
+    void resumeCaretUpdates() {
+        suspendCount--;
+    }
+
+    boolean isSuspended() {
+        return suspendCount > 0;
+    }
+
+    /** @return whether the current caret update should be skipped (and reset
+     *  the flag). */
+    boolean consumeSkipCaretUpdate() {
+        if(skipCaretUpdate) {
+            skipCaretUpdate = false;
+            return true;
+        }
+        return false;
+    }
+    // }}}
+
+    // {{{ Guard class
+
+    /**
+     *  Positions around an anchor: one before the character left of the
+     *  anchor, the anchor itself and one after the character right of it.
+     *
+     *  An anchor is removed if the removed range includes its offset, i.e.
+     *  if one of these two characters is removed. The anchor then meets the
+     *  position on that side. Positions that have met move together on later
+     *  inserts, so this can still be checked after the removed text has been
+     *  replaced:
+     *
+     *  - Typing over a forward selection (anchor at a, caret at c > a)
+     *    removes a..c, so the right position moves to a and meets the
+     *    anchor. The typed text is inserted at a and moves both.
+     *  - Typing over a backward selection (caret at c < a) removes c..a, so
+     *    the left position and the anchor both move to c. Again the insert
+     *    moves both.
+     *
+     *  Text inserted at the anchor ends up in front of it. Removing exactly
+     *  that text (and not the character before it) goes unnoticed.
+     */
+    static class Guard {
+        private final Position left;
+        private final Position anchor;
+        private final Position right;
+        /* initial distances (0 at the start or end of the buffer) */
+        private final int leftSpan;
+        private final int rightSpan;
+
+        Guard(JEditBuffer buffer, Position anchor) {
+            int offset = anchor.getOffset();
+            this.anchor = anchor;
+            left = buffer.createPosition(Math.max(offset - 1, 0));
+            right = buffer.createPosition(
+                                Math.min(offset + 1, buffer.getLength()));
+            leftSpan = offset - left.getOffset();
+            rightSpan = right.getOffset() - offset;
+        }
+
+        Position getAnchor() {
+            return anchor;
+        }
+
+        boolean isCollapsed() {
+            int offset = anchor.getOffset();
+            return offset - left.getOffset() < leftSpan
+                    || right.getOffset() - offset < rightSpan;
+        }
+    }
+    // }}}
+
+    // {{{ SelectionSnapshot class
+
+    /**
+     *  The selections of a text area (including the virtual width of
+     *  rectangular selections) together with the caret, anchor and buffer
+     *  length they belong to.
+     *
+     *  Selections are not updated on edits, so a snapshot is only valid if
+     *  these are unchanged.
+     */
+    static class SelectionSnapshot {
+        private final Selection[] selections;
+        private final int caret;
+        private final int anchor;
+        private final int length;
+
+        SelectionSnapshot(Selection[] selections, int caret, int anchor,
+                            int length) {
+            this.selections = selections;
+            this.caret = caret;
+            this.anchor = anchor;
+            this.length = length;
+        }
+
+        /** @return selections if they still fit, else null */
+        Selection[] getSelections(int caret, int anchor, int length) {
+            if(caret != this.caret || anchor != this.anchor
+                    || length != this.length) {
+                return null;
+            }
+            return selections;
+        }
+    }
+    // }}}
+
+    // {{{ SecondaryAnchors class
+
+    /**
+     *  Anchors of the other selections in multiple selection mode.
+     *
+     *  The other end of each of these selections (its head) follows the
+     *  caret: it keeps the distance in lines and virtual columns it had to
+     *  the caret when anchored selection mode started. A column of
+     *  selections thus moves like a column of carets.
+     */
+    static class SecondaryAnchors {
+        private final Position[] anchors;
+        private final int[] lineDeltas;
+        private final int[] columnDeltas;
+
+        SecondaryAnchors(Position[] anchors, int[] lineDeltas,
+                            int[] columnDeltas) {
+            this.anchors = anchors;
+            this.lineDeltas = lineDeltas;
+            this.columnDeltas = columnDeltas;
+        }
+
+        int size() {
+            return anchors.length;
+        }
+
+        int getAnchorOffset(int index) {
+            return anchors[index].getOffset();
+        }
+
+        /** @return line of the head relative to the caret line */
+        int getLineDelta(int index) {
+            return lineDeltas[index];
+        }
+
+        /** @return virtual column of the head relative to the caret column */
+        int getColumnDelta(int index) {
+            return columnDeltas[index];
+        }
+    }
+    // }}}
+}
@@ -0,0 +1,188 @@
+// :indentSize=4:tabSize=4:noTabs=true:folding=explicit:
+package anchoredselection;
+
+// {{{ Imports
+import java.awt.EventQueue;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+// }}}
+
+/**
+ *  Ring buffer of the most recent handler, resize and action wrapper calls.
+ *
+ *  Other than Metrics this keeps the individual entries, so the reason for a
+ *  specific stall can be found. Entries are stored in primitive arrays; a
+ *  writer claims a slot with a single atomic increment, so recording neither
+ *  locks nor allocates. Entries written while a dump reads them may be
+ *  inconsistent, which is acceptable for a diagnostic tool.
+ *
+ *  The arrays, their mask and the cursor are kept together in a Ring, which
+ *  is replaced (not modified) when the capacity changes. Writers may run on
+ *  any thread, so they read the current Ring once from a volatile field and
+ *  never see arrays and mask of different sizes.
+ *
+ *  Recording is done by Metrics.record (the call sites are the same).
+ */
+class TraceRecorder {
+    // {{{ data structures
+    private static final int DEFAULT_CAPACITY = 1 << 14;
+
+    private static volatile boolean enabled = false;
+    /* null until recording is first switched on */
+    private static volatile Ring ring;
+
+    /* names of wrapped actions (by id) */
+    private static final List<String> nameList = new ArrayList<String>();
+    private static final ConcurrentMap<String, Integer> nameIds =
+                                    new ConcurrentHashMap<String, Integer>();
+    // }}}
+
+    // {{{ Ring class
+    private static final class Ring {
+        final int mask;
+        final long[] starts;
+        final long[] durations;
+        final int[] events;
+        final int[] names;
+        final boolean[] onEDT;
+        final AtomicLong cursor = new AtomicLong();
+
+        Ring(int size) {
+            mask = size - 1;
+            starts = new long[size];
+            durations = new long[size];
+            events = new int[size];
+            names = new int[size];
+            onEDT = new boolean[size];
+        }
+
+        int size() {
+            return mask + 1;
+        }
+    }
+    // }}}
+
+    // {{{ recording
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Switch recording on or off. The buffer is allocated on first use and
+     *  holds capacity entries (rounded up to a power of two). */
+    static synchronized void setEnabled(boolean enable, int capacity) {
+        if(enable) {
+            int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+            if(ring == null || ring.size() != size) {
+                ring = new Ring(size);
+            }
+        }
+        enabled = enable;
+    }
+
+    static synchronized void setEnabled(boolean enable) {
+        setEnabled(enable, ring == null ? DEFAULT_CAPACITY : ring.size());
+    }
+
+    /** @return id of an action name for {@link #record} (register it if
+     *  necessary) */
+    static int getNameId(String name) {
+        Integer id = nameIds.get(name);
+        if(id != null) {
+            return id;
+        }
+        synchronized(nameList) {
+            id = nameIds.get(name);
+            if(id == null) {
+                id = nameList.size();
+                nameList.add(name);
+                nameIds.put(name, id);
+            }
+        }
+        return id;
+    }
+
+    /** Record an entry (name is an id from getNameId or -1). */
+    static void record(int event, int name, long start, long end) {
+        if(!enabled) {
+            return;
+        }
+        Ring ring = TraceRecorder.ring;
+        int slot = (int)(ring.cursor.getAndIncrement() & ring.mask);
+        ring.starts[slot] = start;
+        ring.durations[slot] = end - start;
+        ring.events[slot] = event;
+        ring.names[slot] = name;
+        ring.onEDT[slot] = EventQueue.isDispatchThread();
+    }
+    // }}}
+
+    // {{{ dump
+
+    /**
+     *  Write the entries of the last seconds to file as CSV.
+     *
+     *  Columns: start time relative to the dump (ms), event, action name,
+     *  duration (us), whether it ran on the EDT and whether it was a stall,
+     *  i.e. took longer than stallMillis on the EDT.
+     *
+     *  @return number of entries written
+     */
+    static synchronized int dump(File file, int seconds, int stallMillis)
+                                                        throws IOException {
+        Ring ring = TraceRecorder.ring;
+        if(ring == null) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long since = now - seconds * 1000000000L;
+        long stallNanos = stallMillis * 1000000L;
+        long last = ring.cursor.get();
+        long first = Math.max(0L, last - ring.size());
+        int written = 0;
+        Writer out = new BufferedWriter(new FileWriter(file));
+        try {
+            out.write("start_ms,event,name,duration_us,edt,stall\n");
+            for(long i = first; i < last; i++) {
+                int slot = (int)(i & ring.mask);
+                long start = ring.starts[slot];
+                if(start - since < 0) {
+                    continue;
+                }
+                long duration = ring.durations[slot];
+                out.write(String.valueOf((start - now) / 1000000L));
+                out.write(',');
+                out.write(Metrics.getEventName(ring.events[slot]));
+                out.write(',');
+                out.write(getName(ring.names[slot]));
+                out.write(',');
+                out.write(String.valueOf(duration / 1000L));
+                out.write(',');
+                out.write(ring.onEDT[slot] ? "1" : "0");
+                out.write(',');
+                out.write(ring.onEDT[slot] && duration > stallNanos
+                            ? "1" : "0");
+                out.write('\n');
+                written++;
+            }
+        } finally {
+            out.close();
+        }
+        return written;
+    }
+
+    private static String getName(int id) {
+        synchronized(nameList) {
+            return id >= 0 && id < nameList.size() ? nameList.get(id) : "";
+        }
+    }
+    // }}}
+}
@@ -0,0 +1,161 @@
+// :indentSize=4:tabSize=4:noTabs=true:folding=explicit:
+package anchoredselection;
+
+// {{{ Imports
+import org.gjt.sp.jedit.textarea.TextArea;
+import org.gjt.sp.jedit.textarea.TextAreaExtension;
+import org.gjt.sp.jedit.textarea.TextAreaPainter;
+
+import java.awt.Graphics2D;
+import java.awt.Point;
+// }}}
+
+/**
+ *  Paints a virtual anchored selection, i.e. the range from the anchor to the
+ *  caret, without an actual Selection.
+ *
+ *  Used for very large buffers where resizing a Selection on every caret
+ *  movement is too expensive. Only the visible lines are painted, so the cost
+ *  does not depend on the size of the selection. A real Selection is only
+ *  created when an action needs it (see
+ *  AnchoredSelectionPlugin.materializeSelection).
+ *
+ *  If rectangular selection is enabled the rectangle between the virtual
+ *  columns of anchor and caret is painted (like Selection.Rect, but the
+ *  columns follow the caret, there is no extra virtual width).
+ */
+class VirtualSelectionPainter extends TextAreaExtension {
+    private final TextArea textArea;
+    /* output parameter of JEditBuffer.getOffsetOfVirtualColumn */
+    private final int[] totalVirtualWidth = new int[1];
+
+    VirtualSelectionPainter(TextArea textArea) {
+        this.textArea = textArea;
+    }
+
+    // {{{ install / uninstall
+
+    /** Add a painter to textArea. */
+    static void install(TextArea textArea) {
+        textArea.getPainter().addExtension(TextAreaPainter.SELECTION_LAYER,
+                                    new VirtualSelectionPainter(textArea));
+    }
+
+    /** Remove all painters from textArea. */
+    static void uninstall(TextArea textArea) {
+        TextAreaPainter painter = textArea.getPainter();
+        for(TextAreaExtension extension: painter.getExtensions()) {
+            if(extension instanceof VirtualSelectionPainter) {
+                painter.removeExtension(extension);
+            }
+        }
+    }
+    // }}}
+
+    // {{{ TextAreaExtension implementation
+    @Override
+    public void paintValidLine(Graphics2D gfx, int screenLine,
+                        int physicalLine, int start, int end, int y) {
+        int anchor = AnchoredSelectionPlugin.getVirtualAnchor(textArea);
+        if(anchor == TextAreaState.NO_ANCHOR) {
+            return;
+        }
+        int caret = textArea.getCaretPosition();
+        if(textArea.isRectangularSelectionEnabled()) {
+            paintRect(gfx, physicalLine, start, end, y, anchor, caret);
+            return;
+        }
+        int selectionStart = Math.min(anchor, caret);
+        int selectionEnd = Math.max(anchor, caret);
+        if(selectionStart == selectionEnd
+                || selectionStart >= end || selectionEnd <= start) {
+            return;
+        }
+        TextAreaPainter painter = textArea.getPainter();
+        int x1 = 0;
+        if(selectionStart > start) {
+            Point point = textArea.offsetToXY(selectionStart);
+            if(point == null) {
+                return;
+            }
+            x1 = point.x;
+        }
+        int x2 = painter.getWidth();
+        if(selectionEnd < end) {
+            Point point = textArea.offsetToXY(selectionEnd);
+            if(point == null) {
+                return;
+            }
+            x2 = point.x;
+        }
+        gfx.setColor(painter.getSelectionColor());
+        gfx.fillRect(x1, y, x2 - x1, painter.getFontMetrics().getHeight());
+    }
+
+    /** Paint the part of the rectangle between the virtual columns of anchor
+     *  and caret on the given screen line. */
+    private void paintRect(Graphics2D gfx, int physicalLine, int start,
+                            int end, int y, int anchor, int caret) {
+        int anchorLine = textArea.getLineOfOffset(anchor);
+        int caretLine = textArea.getLineOfOffset(caret);
+        if(physicalLine < Math.min(anchorLine, caretLine)
+                || physicalLine > Math.max(anchorLine, caretLine)) {
+            return;
+        }
+        int anchorColumn = getVirtualColumn(textArea, anchor);
+        int caretColumn = getVirtualColumn(textArea, caret);
+        if(anchorColumn == caretColumn) {
+            return;
+        }
+        int x1 = getColumnX(physicalLine, start, end,
+                            Math.min(anchorColumn, caretColumn));
+        int x2 = getColumnX(physicalLine, start, end,
+                            Math.max(anchorColumn, caretColumn));
+        if(x1 == x2) {
+            return;
+        }
+        TextAreaPainter painter = textArea.getPainter();
+        gfx.setColor(painter.getSelectionColor());
+        gfx.fillRect(x1, y, x2 - x1, painter.getFontMetrics().getHeight());
+    }
+
+    /** @return x coordinate of the virtual column on the screen line from
+     *  start to end (clipped to the screen line). */
+    private int getColumnX(int physicalLine, int start, int end, int column) {
+        TextAreaPainter painter = textArea.getPainter();
+        int lineStart = textArea.getLineStartOffset(physicalLine);
+        int offset = textArea.getBuffer().getOffsetOfVirtualColumn(
+                                physicalLine, column, totalVirtualWidth);
+        int extraWidth = 0;
+        if(offset == -1) {
+            // column is beyond the line end
+            offset = textArea.getLineEndOffset(physicalLine) - 1 - lineStart;
+            extraWidth = (column - totalVirtualWidth[0])
+                            * painter.getFontMetrics().charWidth(' ');
+        }
+        offset += lineStart;
+        if(offset < start) {
+            return 0;
+        } else if(offset >= end && end < textArea.getLineEndOffset(
+                                                        physicalLine) - 1) {
+            // column is on a later screen line (soft wrap)
+            return painter.getWidth();
+        }
+        Point point = textArea.offsetToXY(offset);
+        if(point == null) {
+            return 0;
+        }
+        return Math.min(point.x + extraWidth, painter.getWidth());
+    }
+    // }}}
+
+    // {{{ getVirtualColumn
+
+    /** @return virtual column (i.e. with expanded tabs) of offset */
+    static int getVirtualColumn(TextArea textArea, int offset) {
+        int line = textArea.getLineOfOffset(offset);
+        return textArea.getBuffer().getVirtualWidth(line,
+                                offset - textArea.getLineStartOffset(line));
+    }
+    // }}}
+}
@@ -0,0 +1,113 @@
+// :indentSize=4:tabSize=4:noTabs=true:folding=explicit:
+package anchoredselection;
+
+// {{{ Imports
+import org.gjt.sp.jedit.buffer.JEditBuffer;
+import org.gjt.sp.jedit.textarea.TextArea;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+// }}}
+
+/**
+ *  AnchorMap operations with many text areas, buffers and anchors.
+ *
+ *  Every text area has an anchor; ten text areas share a buffer. The anchors
+ *  are in the first half of their buffer, so removals in the second half
+ *  miss all of them (the usual case while typing).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class AnchorMapBenchmark {
+    private static final int LINES = 1000;
+    private static final int TEXT_AREAS_PER_BUFFER = 10;
+
+    @Param({"1", "1000", "10000"})
+    public int textAreas;
+
+    private AnchorMap anchorMap;
+    private TextArea[] areas;
+    private int[] anchors;
+    /* offset of a removal that misses all anchors */
+    private int missOffset;
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+        int bufferCount = Math.max(1, textAreas / TEXT_AREAS_PER_BUFFER);
+        JEditBuffer[] buffers = new JEditBuffer[bufferCount];
+        for(int i = 0; i < bufferCount; i++) {
+            buffers[i] = BenchmarkSupport.createBuffer(LINES);
+        }
+        anchorMap = new AnchorMap();
+        areas = new TextArea[textAreas];
+        anchors = new int[textAreas];
+        for(int i = 0; i < textAreas; i++) {
+            JEditBuffer buffer = buffers[i % bufferCount];
+            areas[i] = BenchmarkSupport.createTextArea(buffer, false);
+            anchors[i] = buffer.getLineStartOffset(i % (LINES / 2));
+            anchorMap.set(areas[i], anchors[i]);
+        }
+        missOffset = buffers[0].getLineStartOffset(LINES - 10);
+    }
+
+    /** @return index of the text area to use next (round robin) */
+    private int next() {
+        int index = next;
+        next = index + 1 == textAreas ? 0 : index + 1;
+        return index;
+    }
+
+    @Benchmark
+    public int get() {
+        return anchorMap.get(areas[next()]);
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return anchorMap.contains(areas[next()]);
+    }
+
+    /** Replace the anchor of a text area (creates a Position and a new
+     *  snapshot of its buffer's anchors). */
+    @Benchmark
+    public void set() {
+        int index = next();
+        anchorMap.set(areas[index], anchors[index]);
+    }
+
+    /** A removal in a buffer with anchors that hits none of them. */
+    @Benchmark
+    public List<TextArea> removeMiss() {
+        return anchorMap.remove(areas[next()].getBuffer(), missOffset, 1);
+    }
+
+    /** Remove the anchor of a text area by a removal at the anchor and set
+     *  it again, so that the map stays the same size. */
+    @Benchmark
+    public List<TextArea> removeHit() {
+        int index = next();
+        List<TextArea> removed = anchorMap.remove(areas[index].getBuffer(),
+                                                    anchors[index], 1);
+        for(TextArea textArea: removed) {
+            anchorMap.set(textArea, anchors[index]);
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,240 @@
+// :indentSize=4:tabSize=4:noTabs=true:folding=explicit:
+package anchoredselection;
+
+// {{{ Imports
+import org.gjt.sp.jedit.buffer.JEditBuffer;
+import org.gjt.sp.jedit.textarea.TextArea;
+
+import javax.swing.text.Position;
+import java.awt.EventQueue;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+// }}}
+
+/**
+ *  Stress check for anchors in buffers that are edited outside the EDT.
+ *
+ *  Worker threads insert and remove text in a few buffers, as I/O threads
+ *  do on reload or insert-file. Their removals go through the plugin's
+ *  buffer listener, which finds the removed anchors in the AnchorMap
+ *  snapshot and hands them over to the EDT. Meanwhile the EDT moves the
+ *  carets (the caret update handler runs under the buffer's read lock, as
+ *  it does in jEdit), sets and removes anchors, and edits the buffers too.
+ *  The AnchorMap itself is never locked.
+ *
+ *  At the end, after all handed over removals have been processed, every
+ *  anchor in the snapshots must belong to a text area with an anchor and
+ *  be inside its buffer. Any exception on any thread is a failure as well.
+ *
+ *  Usage: AnchorMapStress [seconds] (see the stress target in
+ *  bench/build.xml). Exits with status 1 on failure.
+ */
+public class AnchorMapStress {
+    private static final int BUFFERS = 4;
+    private static final int TEXT_AREAS_PER_BUFFER = 4;
+    private static final int WORKERS = 4;
+    private static final int LINES = 200;
+
+    // {{{ data structures
+    private static JEditBuffer[] buffers;
+    private static TextArea[] textAreas;
+    private static AnchorMap anchorMap;
+    private static volatile boolean running = true;
+    private static volatile Throwable failure;
+    private static final AtomicLong edits = new AtomicLong();
+    private static long caretUpdates = 0L;
+    private static long anchorsSet = 0L;
+    // }}}
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        Thread.setDefaultUncaughtExceptionHandler(
+            new Thread.UncaughtExceptionHandler() {
+                public void uncaughtException(Thread thread, Throwable e) {
+                    System.err.println("Exception in " + thread.getName());
+                    e.printStackTrace();
+                    failure = e;
+                }
+            });
+        BenchmarkSupport.resetPlugin();
+        anchorMap = BenchmarkSupport.getAnchorMap();
+        EventQueue.invokeAndWait(new Runnable() {
+            public void run() {
+                try {
+                    createTextAreas();
+                } catch(Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        Thread[] workers = new Thread[WORKERS];
+        for(int i = 0; i < WORKERS; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+        EventQueue.invokeLater(new EdtTask());
+        Thread.sleep(seconds * 1000L);
+        running = false;
+        for(Thread worker: workers) {
+            worker.join();
+        }
+        // process the removals handed over by the workers
+        BenchmarkSupport.drainEventQueue();
+        BenchmarkSupport.drainEventQueue();
+        final StringBuilder problems = new StringBuilder();
+        EventQueue.invokeAndWait(new Runnable() {
+            public void run() {
+                check(problems);
+            }
+        });
+        if(failure != null) {
+            problems.append("exception: ").append(failure).append('\n');
+        }
+        System.out.println(edits.get() + " edits, " + caretUpdates
+                            + " caret updates, " + anchorsSet
+                            + " anchors set");
+        if(problems.length() > 0) {
+            System.out.print("FAILED\n" + problems);
+            System.exit(1);
+        }
+        System.out.println("ok");
+        System.exit(0);
+    }
+
+    // {{{ setup and check (on the EDT)
+
+    private static void createTextAreas() throws Exception {
+        buffers = new JEditBuffer[BUFFERS];
+        textAreas = new TextArea[BUFFERS * TEXT_AREAS_PER_BUFFER];
+        for(int i = 0; i < BUFFERS; i++) {
+            buffers[i] = BenchmarkSupport.createBuffer(LINES);
+            for(int j = 0; j < TEXT_AREAS_PER_BUFFER; j++) {
+                TextArea textArea = BenchmarkSupport.createTextArea(
+                                                        buffers[i], false);
+                textAreas[i * TEXT_AREAS_PER_BUFFER + j] = textArea;
+                Handlers.caretHandler.listenTo(textArea);
+            }
+        }
+    }
+
+    /** Compare the snapshots of all buffers with the text areas' anchors. */
+    private static void check(StringBuilder problems) {
+        for(int i = 0; i < BUFFERS; i++) {
+            JEditBuffer buffer = buffers[i];
+            int length = buffer.getLength();
+            List<Position> snapshot = anchorMap.findRemoved(buffer, 0,
+                                                            length);
+            int anchored = 0;
+            for(int j = 0; j < TEXT_AREAS_PER_BUFFER; j++) {
+                TextArea textArea = textAreas[i * TEXT_AREAS_PER_BUFFER + j];
+                int anchor = anchorMap.get(textArea);
+                if(anchor == TextAreaState.NO_ANCHOR) {
+                    continue;
+                }
+                anchored++;
+                if(anchor > length) {
+                    problems.append("buffer ").append(i)
+                        .append(": anchor ").append(anchor)
+                        .append(" beyond the end ").append(length)
+                        .append('\n');
+                }
+            }
+            if(snapshot.size() != anchored) {
+                problems.append("buffer ").append(i).append(": ")
+                    .append(snapshot.size()).append(" anchors in the snapshot, ")
+                    .append(anchored).append(" text areas with an anchor\n");
+            }
+            if(anchorMap.contains(buffer) != (anchored > 0)) {
+                problems.append("buffer ").append(i)
+                    .append(": index does not match the text areas\n");
+            }
+        }
+    }
+    // }}}
+
+    // {{{ Worker class
+
+    /** Edits the buffers until running is unset. */
+    private static class Worker extends Thread {
+        private final Random random;
+
+        Worker(int index) {
+            super("stress worker " + index);
+            random = new Random(index);
+        }
+
+        public void run() {
+            while(running) {
+                edit(buffers[random.nextInt(BUFFERS)], random);
+                edits.incrementAndGet();
+            }
+        }
+    }
+
+    /** Insert or remove a few characters at a random offset (removals are
+     *  more likely in buffers that have grown). */
+    private static void edit(JEditBuffer buffer, Random random) {
+        buffer.writeLock();
+        try {
+            int length = buffer.getLength();
+            int offset = random.nextInt(length + 1);
+            boolean grown = length > LINES * BenchmarkSupport.LINE.length();
+            if(random.nextInt(4) < (grown ? 3 : 1) && offset < length) {
+                buffer.remove(offset, Math.min(1 + random.nextInt(8),
+                                                length - offset));
+            } else {
+                buffer.insert(offset, random.nextBoolean() ? "ab" : "\nxyz");
+            }
+        } finally {
+            buffer.writeUnlock();
+        }
+    }
+    // }}}
+
+    // {{{ EdtTask class
+
+    /** One round of EDT work per event, so that the handed over removals
+     *  are processed in between. Re-posts itself until running is unset. */
+    private static class EdtTask implements Runnable {
+        private final Random random = new Random(-1L);
+
+        public void run() {
+            if(!running) {
+                return;
+            }
+            TextArea textArea = textAreas[random.nextInt(textAreas.length)];
+            JEditBuffer buffer = textArea.getBuffer();
+            int action = random.nextInt(16);
+            if(action == 0) {
+                edit(buffer, random);
+                edits.incrementAndGet();
+            } else if(action == 1) {
+                anchorMap.remove(textArea);
+            } else if(action < 4 || !anchorMap.contains(textArea)) {
+                // the lock only keeps the offset inside the buffer
+                buffer.readLock();
+                try {
+                    anchorMap.set(textArea,
+                                    random.nextInt(buffer.getLength() + 1));
+                } finally {
+                    buffer.readUnlock();
+                }
+                Handlers.bufferHandler.listenTo(buffer);
+                anchorsSet++;
+            } else {
+                buffer.readLock();
+                try {
+                    // the caret listener calls handleCaretUpdate
+                    textArea.setCaretPosition(
+                                random.nextInt(buffer.getLength() + 1));
+                    caretUpdates++;
+                } finally {
+                    buffer.readUnlock();
+                }
+            }
+            EventQueue.invokeLater(this);
+        }
+    }
+    // }}}
+}
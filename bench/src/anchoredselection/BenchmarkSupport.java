@@ -0,0 +1,120 @@
+// :indentSize=4:tabSize=4:noTabs=true:folding=explicit:
+package anchoredselection;
+
+// {{{ Imports
+import org.gjt.sp.jedit.IPropertyManager;
+import org.gjt.sp.jedit.buffer.JEditBuffer;
+import org.gjt.sp.jedit.syntax.ParserRuleSet;
+import org.gjt.sp.jedit.syntax.TokenMarker;
+import org.gjt.sp.jedit.textarea.TextArea;
+
+import java.awt.EventQueue;
+import java.lang.reflect.Field;
+// }}}
+
+/**
+ *  Headless buffers and text areas for the benchmarks, and access to the
+ *  plugin's private static state.
+ *
+ *  The plugin is not started: there is no jEdit instance, no view and no
+ *  EditBus. The benchmarks call the handler methods directly or through the
+ *  listeners in Handlers, like jEdit would.
+ */
+class BenchmarkSupport {
+    /* text of one buffer line (without the line end) */
+    static final String LINE = "the quick brown fox jumps over the lazy dog";
+
+    // {{{ StubTextArea class
+
+    /** A TextArea without jEdit's properties (all are unset) and input
+     *  handling. It holds a buffer, a caret and selections. */
+    static class StubTextArea extends TextArea {
+        StubTextArea(JEditBuffer buffer) {
+            super(new IPropertyManager() {
+                    public String getProperty(String name) {
+                        return null;
+                    }
+                }, null);
+            setBuffer(buffer);
+        }
+    }
+    // }}}
+
+    // {{{ buffers and text areas
+
+    /** @return a buffer of the given number of lines (no file, no
+     *  undo history, plain text) */
+    static JEditBuffer createBuffer(int lines) {
+        JEditBuffer buffer = new JEditBuffer();
+        TokenMarker tokenMarker = new TokenMarker();
+        tokenMarker.addRuleSet(new ParserRuleSet("text", "MAIN"));
+        buffer.setTokenMarker(tokenMarker);
+        StringBuilder text = new StringBuilder(lines * (LINE.length() + 1));
+        for(int i = 0; i < lines; i++) {
+            text.append(LINE).append('\n');
+        }
+        buffer.insert(0, text.toString());
+        return buffer;
+    }
+
+    /** @return a text area showing buffer. If laidOut is set it gets a size,
+     *  so that it has visible lines to scroll and repaint. */
+    static TextArea createTextArea(JEditBuffer buffer, boolean laidOut)
+                                                            throws Exception {
+        final TextArea textArea = new StubTextArea(buffer);
+        if(laidOut) {
+            textArea.setBounds(0, 0, 800, 600);
+            textArea.doLayout();
+            textArea.getPainter().setBounds(0, 0, 780, 580);
+            // the text area recomputes its visible lines on the resize event
+            drainEventQueue();
+        }
+        return textArea;
+    }
+
+    /** Wait until all pending events on the EDT have been processed. */
+    static void drainEventQueue() throws Exception {
+        EventQueue.invokeAndWait(new Runnable() {
+            public void run() {
+            }
+        });
+    }
+    // }}}
+
+    // {{{ plugin state
+
+    /**
+     *  Give the plugin an empty AnchorMap and the options the benchmarks
+     *  assume: selections are resized on every caret update, the anchor is
+     *  checked by the buffer listener, and there are no macro batches (no
+     *  BeanShell) and no status bar statistics (no views). Other options
+     *  keep their defaults unless a benchmark sets them.
+     */
+    static void resetPlugin() throws Exception {
+        setStatic("anchorMap", new AnchorMap());
+        setStatic("coalesceResize", Boolean.FALSE);
+        setStatic("virtualSelectionSize", Integer.valueOf(0));
+        setStatic("incrementalRect", Boolean.FALSE);
+        setStatic("lazyValidation", Boolean.FALSE);
+        setStatic("batchMacros", Boolean.FALSE);
+        setStatic("statistics", Boolean.FALSE);
+    }
+
+    /** @return the AnchorMap of the plugin */
+    static AnchorMap getAnchorMap() throws Exception {
+        return (AnchorMap)getField("anchorMap").get(null);
+    }
+
+    /** Set a private static field (an option or the AnchorMap) of the
+     *  plugin. */
+    static void setStatic(String name, Object value) throws Exception {
+        getField(name).set(null, value);
+    }
+
+    private static Field getField(String name) throws NoSuchFieldException {
+        Field field = AnchoredSelectionPlugin.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+    // }}}
+}
@@ -0,0 +1,103 @@
+// :indentSize=4:tabSize=4:noTabs=true:folding=explicit:
+package anchoredselection;
+
+// {{{ Imports
+import org.gjt.sp.jedit.buffer.JEditBuffer;
+import org.gjt.sp.jedit.textarea.TextArea;
+
+import java.awt.EventQueue;
+import java.lang.management.ManagementFactory;
+// }}}
+
+/**
+ *  Checks that the keystroke path does not allocate: a caret update that
+ *  leaves the selection as it is, a skipped caret update, and a removal
+ *  that misses the anchor.
+ *
+ *  Each path runs on the EDT, first to warm up, then a number of times
+ *  between two reads of the thread's allocated bytes. The check fails if
+ *  this allocated more than the reads themselves do. (JFR allocation
+ *  events only sample new TLABs and objects outside them, so they cannot
+ *  show that nothing was allocated.)
+ *
+ *  Exits with status 1 if a path allocates (see the allocation-check target
+ *  in bench/build.xml).
+ */
+public class CaretUpdateAllocationCheck {
+    private static final int WARMUP = 200000;
+    private static final int CALLS = 100000;
+
+    // {{{ data structures
+    private static com.sun.management.ThreadMXBean threads;
+    private static JEditBuffer buffer;
+    private static TextArea textArea;
+    private static int missOffset;
+    private static boolean failed = false;
+    // }}}
+
+    public static void main(String[] args) throws Exception {
+        java.lang.management.ThreadMXBean bean =
+                                    ManagementFactory.getThreadMXBean();
+        if(!(bean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean)bean)
+                    .isThreadAllocatedMemorySupported()) {
+            System.err.println("Thread allocation counting not supported");
+            System.exit(2);
+        }
+        threads = (com.sun.management.ThreadMXBean)bean;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        BenchmarkSupport.resetPlugin();
+        buffer = BenchmarkSupport.createBuffer(10000);
+        textArea = BenchmarkSupport.createTextArea(buffer, true);
+        missOffset = buffer.getLineStartOffset(9990);
+        BenchmarkSupport.getAnchorMap().set(textArea,
+                                            buffer.getLineStartOffset(100));
+        Handlers.caretHandler.listenTo(textArea);
+        textArea.setCaretPosition(buffer.getLineStartOffset(5000));
+        EventQueue.invokeAndWait(new Runnable() {
+            public void run() {
+                check("unchanged caret update", new Runnable() {
+                    public void run() {
+                        AnchoredSelectionPlugin.handleCaretUpdate(textArea);
+                    }
+                });
+                check("skipped caret update", new Runnable() {
+                    public void run() {
+                        AnchoredSelectionPlugin.skipCaretUpdate(textArea);
+                        AnchoredSelectionPlugin.handleCaretUpdate(textArea);
+                    }
+                });
+                check("removal missing the anchor", new Runnable() {
+                    public void run() {
+                        AnchoredSelectionPlugin.handlePreContentRemoved(
+                                                    buffer, missOffset, 1);
+                    }
+                });
+            }
+        });
+        System.exit(failed ? 1 : 0);
+    }
+
+    /** Run path WARMUP times, then CALLS times while counting the bytes
+     *  allocated by the current thread. */
+    private static void check(String name, Runnable path) {
+        for(int i = 0; i < WARMUP; i++) {
+            path.run();
+        }
+        long id = Thread.currentThread().getId();
+        // what reading the counter allocates itself
+        long start = threads.getThreadAllocatedBytes(id);
+        long overhead = threads.getThreadAllocatedBytes(id) - start;
+        start = threads.getThreadAllocatedBytes(id);
+        for(int i = 0; i < CALLS; i++) {
+            path.run();
+        }
+        long allocated = threads.getThreadAllocatedBytes(id) - start
+                            - overhead;
+        boolean ok = allocated <= 0;
+        System.out.println((ok ? "ok    " : "FAILED") + " " + name + ": "
+                            + Math.max(allocated, 0) + " bytes in " + CALLS
+                            + " calls");
+        failed |= !ok;
+    }
+}
@@ -0,0 +1,103 @@
+// :indentSize=4:tabSize=4:noTabs=true:folding=explicit:
+package anchoredselection;
+
+// {{{ Imports
+import org.gjt.sp.jedit.buffer.JEditBuffer;
+import org.gjt.sp.jedit.textarea.TextArea;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.EventQueue;
+import java.util.concurrent.TimeUnit;
+// }}}
+
+/**
+ *  The keystroke path: caret updates in anchored selection mode and buffer
+ *  removals in a buffer with an anchor.
+ *
+ *  Text area calls are made on the benchmark thread while the EDT is idle,
+ *  except for the removals on the EDT, which are run there in batches.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class CaretUpdateBenchmark {
+    private static final int LINES = 10000;
+    /* removals per invokeAndWait */
+    private static final int BATCH = 1000;
+
+    private JEditBuffer buffer;
+    private TextArea textArea;
+    /* caret offsets the move benchmark alternates between */
+    private int[] carets;
+    private int nextCaret = 0;
+    /* offset of a removal that misses the anchor */
+    private int missOffset;
+    private Runnable removals;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkSupport.resetPlugin();
+        buffer = BenchmarkSupport.createBuffer(LINES);
+        textArea = BenchmarkSupport.createTextArea(buffer, true);
+        int anchor = buffer.getLineStartOffset(100);
+        carets = new int[] {
+            buffer.getLineStartOffset(5000), buffer.getLineStartOffset(5001)
+        };
+        missOffset = buffer.getLineStartOffset(LINES - 10);
+        BenchmarkSupport.getAnchorMap().set(textArea, anchor);
+        Handlers.caretHandler.listenTo(textArea);
+        // resizes the selection (the caret update it fires is skipped)
+        textArea.setCaretPosition(carets[0]);
+        removals = new Runnable() {
+            public void run() {
+                for(int i = 0; i < BATCH; i++) {
+                    AnchoredSelectionPlugin.handlePreContentRemoved(buffer,
+                                                            missOffset, 1);
+                }
+            }
+        };
+    }
+
+    /** A caret update that leaves the selection as it is (e.g. a caret
+     *  event fired for a repaint). */
+    @Benchmark
+    public void unchanged() {
+        AnchoredSelectionPlugin.handleCaretUpdate(textArea);
+    }
+
+    /** Move the caret by a line: the text area fires a caret update, the
+     *  selection is resized, and the caret update that fires is skipped. */
+    @Benchmark
+    public void move() {
+        nextCaret ^= 1;
+        textArea.setCaretPosition(carets[nextCaret]);
+    }
+
+    /** A removal on the EDT that misses the anchor. */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void preContentRemoved() throws Exception {
+        EventQueue.invokeAndWait(removals);
+    }
+
+    /** A removal outside the EDT (e.g. by an I/O thread) that misses the
+     *  anchor. */
+    @Benchmark
+    public void preContentRemovedOffEdt() {
+        AnchoredSelectionPlugin.handlePreContentRemoved(buffer, missOffset, 1);
+    }
+}
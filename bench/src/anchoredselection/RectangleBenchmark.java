@@ -0,0 +1,74 @@
+// :indentSize=4:tabSize=4:noTabs=true:folding=explicit:
+package anchoredselection;
+
+// {{{ Imports
+import org.gjt.sp.jedit.buffer.JEditBuffer;
+import org.gjt.sp.jedit.textarea.TextArea;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+// }}}
+
+/**
+ *  Moving the caret line by line through a 100k line buffer in rectangular
+ *  anchored selection mode, with the rectangle rebuilt on every move or
+ *  (incremental) only the lines that entered it repainted (see the
+ *  incremental-rect option).
+ *
+ *  The anchor is at the start of the first line, so the rectangle grows
+ *  to 100k lines. The result is the time per line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RectangleBenchmark {
+    private static final int LINES = 100000;
+    private static final int COLUMN = 10;
+
+    @Param({"false", "true"})
+    public boolean incremental;
+
+    private JEditBuffer buffer;
+    private TextArea textArea;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkSupport.resetPlugin();
+        BenchmarkSupport.setStatic("incrementalRect",
+                                    Boolean.valueOf(incremental));
+        buffer = BenchmarkSupport.createBuffer(LINES);
+        textArea = BenchmarkSupport.createTextArea(buffer, true);
+        textArea.setRectangularSelectionEnabled(true);
+        BenchmarkSupport.getAnchorMap().set(textArea, 0);
+        if(incremental) {
+            Handlers.virtualSelectionHandler.listenTo(textArea);
+        }
+        Handlers.caretHandler.listenTo(textArea);
+    }
+
+    /** Move from the first to the last line, one line per caret update. */
+    @Benchmark
+    @OperationsPerInvocation(LINES - 1)
+    public void moveThroughAllLines() {
+        textArea.setCaretPosition(COLUMN);
+        for(int line = 1; line < LINES; line++) {
+            textArea.setCaretPosition(buffer.getLineStartOffset(line)
+                                        + COLUMN);
+        }
+    }
+}